@@ -0,0 +1,107 @@
+package com.sap.expenseuploader.benchmarks;
+
+import com.sap.expenseuploader.expenses.ExpenseSink;
+import com.sap.expenseuploader.expenses.input.ExcelInput;
+import com.sap.expenseuploader.expenses.output.ExcelOutput;
+import com.sap.expenseuploader.model.Expense;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and writing XLSX files of generated line items. An XLSX sheet holds at most 1,048,576 rows,
+ * so the data sets end at one million rows. The score is the time for the whole file.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 1 )
+@Measurement( iterations = 3 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx2g" )
+public class ExcelBenchmark
+{
+    @Param( { "10000", "100000", "1000000" } )
+    public int rows;
+
+    private Expense[] expenses;
+    private File inputFile;
+    private File outputFile;
+
+    @Setup
+    public void setUp()
+        throws IOException
+    {
+        this.expenses = new ExpenseGenerator(42).nextExpenses(Math.min(this.rows, ExpenseBenchmark.POOL_SIZE));
+        this.inputFile = File.createTempFile("expenses-input", ".xlsx");
+        this.outputFile = File.createTempFile("expenses-output", ".xlsx");
+        new ExcelOutput(this.inputFile.getPath()).putExpenses(new ExpenseGenerator(42).expenses(this.rows));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        this.inputFile.delete();
+        this.outputFile.delete();
+    }
+
+    /**
+     * @return the number of expenses read
+     */
+    @Benchmark
+    public int read()
+        throws IOException
+    {
+        final int[] count = { 0 };
+        new ExcelInput(this.inputFile.getPath()).readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    @Benchmark
+    public void write()
+    {
+        new ExcelOutput(this.outputFile.getPath()).putExpenses(cycle(this.expenses, this.rows));
+    }
+
+    /**
+     * Returns the given number of expenses, repeating the pool as often as needed
+     */
+    private static Iterator<Expense> cycle( final Expense[] pool, final int count )
+    {
+        return new Iterator<Expense>()
+        {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.next < count;
+            }
+
+            @Override
+            public Expense next()
+            {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                return pool[this.next++ % pool.length];
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
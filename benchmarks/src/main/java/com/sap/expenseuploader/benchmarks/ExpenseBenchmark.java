@@ -0,0 +1,106 @@
+package com.sap.expenseuploader.benchmarks;
+
+import com.sap.expenseuploader.Helper;
+import com.sap.expenseuploader.config.costcenter.CostCenterConfig;
+import com.sap.expenseuploader.model.Expense;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per line item work between reading and uploading: building expenses from the raw fields,
+ * normalizing cost centers and routing the expenses to the users of their cost center. The score is the time
+ * for the whole data set; the rows are taken round robin from a pool of generated line items, so that even
+ * 10 million rows don't have to be kept in memory.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 1 )
+@Measurement( iterations = 3, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx2g" )
+public class ExpenseBenchmark
+{
+    static final int POOL_SIZE = 100000;
+
+    @Param( { "10000", "1000000", "10000000" } )
+    public int rows;
+
+    private List<List<String>> fields;
+    private Expense[] expenses;
+    private List<String> userCostCenters;
+    private Map<String, List<String>> costCenterUsers;
+
+    @Setup
+    public void setUp()
+    {
+        ExpenseGenerator generator = new ExpenseGenerator(42);
+        int poolSize = Math.min(this.rows, POOL_SIZE);
+        this.fields = new ArrayList<>(poolSize);
+        for( int i = 0; i < poolSize; i++ ) {
+            this.fields.add(generator.nextFields());
+        }
+        this.expenses = new Expense[poolSize];
+        for( int i = 0; i < poolSize; i++ ) {
+            this.expenses[i] = new Expense(this.fields.get(i));
+        }
+        CostCenterConfig config = generator.costCenterConfig(200, 25);
+        this.userCostCenters = config.getCostCenters(config.getUserList().get(0));
+        this.costCenterUsers = config.getNormalizedCostCenterUsers();
+    }
+
+    @Benchmark
+    public void construct( Blackhole blackhole )
+    {
+        int poolSize = this.fields.size();
+        for( int i = 0; i < this.rows; i++ ) {
+            blackhole.consume(new Expense(this.fields.get(i % poolSize)));
+        }
+    }
+
+    @Benchmark
+    public void stripLeadingZeros( Blackhole blackhole )
+    {
+        int poolSize = this.fields.size();
+        for( int i = 0; i < this.rows; i++ ) {
+            blackhole.consume(Helper.stripLeadingZeros(this.fields.get(i % poolSize).get(2)));
+        }
+    }
+
+    /**
+     * Filters the expenses of one user, like a user specific export would
+     */
+    @Benchmark
+    public int isInCostCenter()
+    {
+        int matches = 0;
+        for( int i = 0; i < this.rows; i++ ) {
+            if( this.expenses[i % this.expenses.length].isInCostCenter(this.userCostCenters) ) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Looks up the users of each expense like the HCP upload does
+     */
+    @Benchmark
+    public int routeToUsers()
+    {
+        int routed = 0;
+        for( int i = 0; i < this.rows; i++ ) {
+            Expense expense = this.expenses[i % this.expenses.length];
+            List<String> users =
+                this.costCenterUsers.get(CostCenterConfig.normalizeCostCenter(expense.getCostCenter()));
+            if( users != null ) {
+                routed += users.size();
+            }
+        }
+        return routed;
+    }
+}
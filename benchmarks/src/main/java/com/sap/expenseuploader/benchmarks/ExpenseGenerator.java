@@ -0,0 +1,229 @@
+package com.sap.expenseuploader.benchmarks;
+
+import com.sap.expenseuploader.DateCodec;
+import com.sap.expenseuploader.config.costcenter.CostCenterConfig;
+import com.sap.expenseuploader.model.Expense;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+
+/**
+ * Generates synthetic line items with distributions similar to an ERP export: a few cost centers and accounts
+ * get most of the postings (Zipf distributed), amounts are log-normal with some credits, most line items are in
+ * EUR, and cost centers and order numbers carry the leading zeros of the ERP. The same seed always generates
+ * the same line items, so benchmark runs are comparable.
+ */
+public class ExpenseGenerator
+{
+    public static final int COST_CENTER_COUNT = 5000;
+    public static final int ACCOUNT_COUNT = 400;
+    public static final int REQUESTER_COUNT = 20000;
+    public static final int INTERNAL_ORDER_COUNT = 1000;
+
+    private static final String[] TYPES = { "ACTUAL", "COMMITMENT", "PLAN" };
+    private static final double[] TYPE_WEIGHTS = { 0.8, 0.15, 0.05 };
+    private static final String[] CURRENCIES = { "EUR", "USD", "GBP", "CHF", "JPY" };
+    private static final double[] CURRENCY_WEIGHTS = { 0.85, 0.1, 0.02, 0.02, 0.01 };
+    private static final String[] WORDS = { "Travel", "Hotel", "Flight", "Taxi", "Conference", "Catering", "Laptop",
+        "License", "Consulting", "Workshop", "Training", "Office", "Supplies", "Rent", "Phone", "Shipping" };
+
+    private final Random random;
+    private final String[] costCenters = new String[COST_CENTER_COUNT];
+    private final String[] accounts = new String[ACCOUNT_COUNT];
+    private final String[] internalOrders = new String[INTERNAL_ORDER_COUNT];
+    private final double[] costCenterWeights = zipf(COST_CENTER_COUNT, 1.1);
+    private final double[] accountWeights = zipf(ACCOUNT_COUNT, 1.3);
+    private final int firstDay = DateCodec.toEpochDay(2016, 1, 1);
+    private long documentNumber = 100000000L;
+
+    public ExpenseGenerator( long seed )
+    {
+        this.random = new Random(seed);
+        // Distinct cost centers and accounts, in random order so the popular ones are not neighbors
+        Set<String> unique = new LinkedHashSet<>();
+        while( unique.size() < COST_CENTER_COUNT ) {
+            unique.add(String.format("%010d", 1000000 + this.random.nextInt(9000000)));
+        }
+        unique.toArray(this.costCenters);
+        unique.clear();
+        while( unique.size() < ACCOUNT_COUNT ) {
+            unique.add(String.valueOf(400000 + this.random.nextInt(100000)));
+        }
+        unique.toArray(this.accounts);
+        for( int i = 0; i < INTERNAL_ORDER_COUNT; i++ ) {
+            this.internalOrders[i] = String.format("%012d", 500000 + i * 7);
+        }
+    }
+
+    /**
+     * Returns cumulative weights of a Zipf distribution, where the item of rank k has weight 1/k^s
+     */
+    private static double[] zipf( int count, double s )
+    {
+        double[] cumulative = new double[count];
+        double sum = 0;
+        for( int k = 1; k <= count; k++ ) {
+            sum += 1 / Math.pow(k, s);
+            cumulative[k - 1] = sum;
+        }
+        for( int i = 0; i < count; i++ ) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private int pick( double[] cumulative )
+    {
+        int index = Arrays.binarySearch(cumulative, this.random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+    }
+
+    private String pick( String[] values, double[] weights )
+    {
+        double r = this.random.nextDouble();
+        for( int i = 0; i < values.length - 1; i++ ) {
+            r -= weights[i];
+            if( r < 0 ) {
+                return values[i];
+            }
+        }
+        return values[values.length - 1];
+    }
+
+    public List<String> getCostCenters()
+    {
+        return Arrays.asList(this.costCenters);
+    }
+
+    /**
+     * Returns the raw fields of the next line item, in the order of the input columns
+     */
+    public List<String> nextFields()
+    {
+        List<String> fields = new ArrayList<>(Expense.FIELD_COUNT);
+        fields.add(DateCodec.format(this.firstDay + this.random.nextInt(365)));
+        fields.add(pick(TYPES, TYPE_WEIGHTS));
+        fields.add(nextCostCenter());
+        fields.add(this.accounts[pick(this.accountWeights)]);
+        fields.add(String.format("I%06d", this.random.nextInt(REQUESTER_COUNT)));
+        fields.add(this.random.nextDouble() < 0.3 ? this.internalOrders[this.random.nextInt(INTERNAL_ORDER_COUNT)]
+            : "");
+        fields.add(nextContext());
+        fields.add(this.random.nextDouble() < 0.4 ? String.valueOf(1000000000L + this.random.nextInt(1000000000))
+            : "");
+        fields.add(nextAmount());
+        fields.add(pick(CURRENCIES, CURRENCY_WEIGHTS));
+        fields.add(String.valueOf(this.documentNumber++));
+        return fields;
+    }
+
+    private String nextCostCenter()
+    {
+        return this.costCenters[pick(this.costCenterWeights)];
+    }
+
+    public Expense nextExpense()
+    {
+        return new Expense(nextFields());
+    }
+
+    public Expense[] nextExpenses( int count )
+    {
+        Expense[] expenses = new Expense[count];
+        for( int i = 0; i < count; i++ ) {
+            expenses[i] = nextExpense();
+        }
+        return expenses;
+    }
+
+    /**
+     * Generates the given number of expenses on the fly, so the data set doesn't have to fit into memory
+     */
+    public Iterator<Expense> expenses( final long count )
+    {
+        return new Iterator<Expense>()
+        {
+            private long generated = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.generated < count;
+            }
+
+            @Override
+            public Expense next()
+            {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                this.generated++;
+                return nextExpense();
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private String nextContext()
+    {
+        StringBuilder context = new StringBuilder();
+        int words = 1 + this.random.nextInt(12);
+        for( int i = 0; i < words; i++ ) {
+            if( i > 0 ) {
+                context.append(' ');
+            }
+            context.append(WORDS[this.random.nextInt(WORDS.length)]);
+        }
+        return context.toString();
+    }
+
+    private String nextAmount()
+    {
+        // Log-normal around 55 with a long tail, 5% credits
+        double amount = Math.exp(4 + 1.5 * this.random.nextGaussian());
+        if( this.random.nextDouble() < 0.05 ) {
+            amount = -amount;
+        }
+        return BigDecimal.valueOf(amount).setScale(2, RoundingMode.HALF_UP).toPlainString();
+    }
+
+    /**
+     * Assigns the cost centers to users like a cost center config: each user gets the given number of cost
+     * centers, some cost centers belong to several users and rarely posted cost centers may belong to nobody.
+     */
+    public CostCenterConfig costCenterConfig( int users, int costCentersPerUser )
+    {
+        return new GeneratedCostCenterConfig(users, costCentersPerUser);
+    }
+
+    private class GeneratedCostCenterConfig extends CostCenterConfig
+    {
+        GeneratedCostCenterConfig( int users, int costCentersPerUser )
+        {
+            for( int u = 0; u < users; u++ ) {
+                String user = String.format("U%05d", u);
+                ArrayList<String> userCostCenters = new ArrayList<>(costCentersPerUser);
+                for( int c = 0; c < costCentersPerUser; c++ ) {
+                    // Stored as in the config files, i.e. with leading zeros
+                    String costCenter = nextCostCenter();
+                    if( !userCostCenters.contains(costCenter) ) {
+                        userCostCenters.add(costCenter);
+                    }
+                }
+                this.userCostCenters.put(user, userCostCenters);
+                for( String costCenter : userCostCenters ) {
+                    if( !this.costCenterUsers.containsKey(costCenter) ) {
+                        this.costCenterUsers.put(costCenter, new ArrayList<String>());
+                    }
+                    this.costCenterUsers.get(costCenter).add(user);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.sap.expenseuploader.benchmarks;
+
+import com.sap.expenseuploader.Helper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the leading zero normalization of Helper with the former regex implementation.
+ * Values are typical for ERP cost centers, accounts and document numbers.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HelperBenchmark
+{
+    @Param( { "0001104340", "1104340", "0000000000" } )
+    public String value;
+
+    @Benchmark
+    public String stripLeadingZerosRegex()
+    {
+        return value.replaceFirst("^0+(?!$)", "");
+    }
+
+    @Benchmark
+    public String stripLeadingZeros()
+    {
+        return Helper.stripLeadingZeros(value);
+    }
+
+    @Benchmark
+    public String stripLeadingZerosAndIntern()
+    {
+        return Helper.intern(Helper.stripLeadingZeros(value));
+    }
+}
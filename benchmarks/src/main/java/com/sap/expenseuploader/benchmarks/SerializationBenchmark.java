@@ -0,0 +1,76 @@
+package com.sap.expenseuploader.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.sap.expenseuploader.model.Expense;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the JSON serialization of the upload payloads. The batches are written like in ExpenseHcpOutput,
+ * i.e. streamed with the type adapter of Expense into a byte array. The score is the time for the whole
+ * data set.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 1 )
+@Measurement( iterations = 3, time = 1 )
+@Fork( value = 1, jvmArgsAppend = "-Xmx2g" )
+public class SerializationBenchmark
+{
+    private static final Gson GSON = new Gson();
+
+    @Param( { "10000", "1000000", "10000000" } )
+    public int rows;
+
+    @Param( { "100", "1000" } )
+    public int batchSize;
+
+    private Expense[] expenses;
+
+    @Setup
+    public void setUp()
+    {
+        this.expenses = new ExpenseGenerator(42).nextExpenses(Math.min(this.rows, ExpenseBenchmark.POOL_SIZE));
+    }
+
+    /**
+     * @return the number of serialized bytes
+     */
+    @Benchmark
+    public long serializeBatches()
+        throws IOException
+    {
+        long bytes = 0;
+        for( int start = 0; start < this.rows; start += this.batchSize ) {
+            bytes += serializeBatch(start, Math.min(this.batchSize, this.rows - start)).length;
+        }
+        return bytes;
+    }
+
+    private byte[] serializeBatch( int start, int count )
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * count);
+        try( JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(bytes,
+            StandardCharsets.UTF_8))) ) {
+            writer.beginObject();
+            writer.name("expenses");
+            writer.beginArray();
+            for( int i = start; i < start + count; i++ ) {
+                GSON.toJson(this.expenses[i % this.expenses.length], Expense.class, writer);
+            }
+            writer.endArray();
+            writer.name("user").value("U00000");
+            writer.endObject();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,248 @@
+package com.sap.expenseuploader;
+
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Parses and formats dates as days since 1970-01-01 (epoch days) without SimpleDateFormat. All methods are
+ * thread-safe. Inputs repeat the same posting dates very often, so the recently used dates are cached.
+ */
+public final class DateCodec
+{
+    private static final int CACHE_SIZE = 256; // must be a power of two
+
+    // The entries are immutable, so the caches can be shared by all threads without locks
+    private static final Entry[] PARSE_CACHE = new Entry[CACHE_SIZE];
+    private static final Entry[] FORMAT_CACHE = new Entry[CACHE_SIZE];
+
+    private static final class Entry
+    {
+        final String text;
+        final int epochDay;
+
+        Entry( String text, int epochDay )
+        {
+            this.text = text;
+            this.epochDay = epochDay;
+        }
+    }
+
+    private DateCodec()
+    {
+    }
+
+    /**
+     * Parses a date in the format yyyy-MM-dd. Like a non-lenient SimpleDateFormat, month and day may have one digit,
+     * invalid dates are rejected and text after the date is ignored.
+     *
+     * @return the date as epoch day
+     * @throws ParseException if the text doesn't start with a valid date
+     */
+    public static int parse( String text )
+        throws ParseException
+    {
+        if( text == null ) {
+            throw new ParseException("Date is missing", 0);
+        }
+        int index = text.hashCode() & (CACHE_SIZE - 1);
+        Entry entry = PARSE_CACHE[index];
+        if( entry != null && entry.text.equals(text) ) {
+            return entry.epochDay;
+        }
+
+        int[] position = { 0 };
+        int year = parseNumber(text, position, 9);
+        expect(text, position, '-');
+        int month = parseNumber(text, position, 2);
+        expect(text, position, '-');
+        int day = parseNumber(text, position, 2);
+        int epochDay = toEpochDay(text, year, month, day);
+
+        PARSE_CACHE[index] = new Entry(text, epochDay);
+        return epochDay;
+    }
+
+    /**
+     * Parses a date of the command line or the ERP, which is either yyyyMMdd or yyyy-MM-dd
+     *
+     * @return the date as epoch day
+     * @throws ParseException
+     */
+    public static int parseErpDate( String text )
+        throws ParseException
+    {
+        if( text != null && text.length() == 8 && text.indexOf('-') < 0 ) {
+            int[] position = { 0 };
+            int year = parseNumber(text, position, 4);
+            int month = parseNumber(text, position, 2);
+            int day = parseNumber(text, position, 2);
+            return toEpochDay(text, year, month, day);
+        }
+        return parse(text);
+    }
+
+    /**
+     * @return the epoch day as yyyy-MM-dd
+     */
+    public static String format( int epochDay )
+    {
+        int index = epochDay & (CACHE_SIZE - 1);
+        Entry entry = FORMAT_CACHE[index];
+        if( entry != null && entry.epochDay == epochDay ) {
+            return entry.text;
+        }
+        String text = format(epochDay, true);
+        FORMAT_CACHE[index] = new Entry(text, epochDay);
+        return text;
+    }
+
+    /**
+     * @return the epoch day as yyyyMMdd, the date format of the ERP
+     */
+    public static String formatErpDate( int epochDay )
+    {
+        return format(epochDay, false);
+    }
+
+    /**
+     * @return the date at midnight in the default time zone
+     */
+    public static Date toDate( int epochDay )
+    {
+        int[] date = fromEpochDay(epochDay);
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(date[0], date[1] - 1, date[2]);
+        return cal.getTime();
+    }
+
+    /**
+     * @return the day of the date in the default time zone
+     */
+    public static int fromDate( Date date )
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        return toEpochDay(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * @return today in the default time zone
+     */
+    public static int today()
+    {
+        return fromDate(new Date());
+    }
+
+    /**
+     * Days since 1970-01-01 of a date of the proleptic Gregorian calendar
+     */
+    public static int toEpochDay( int year, int month, int day )
+    {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return year, month (1-12) and day of month
+     */
+    public static int[] fromEpochDay( int epochDay )
+    {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new int[] { year, month, day };
+    }
+
+    private static int toEpochDay( String text, int year, int month, int day )
+        throws ParseException
+    {
+        if( year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ) {
+            throw new ParseException("Invalid date: " + text, 0);
+        }
+        return toEpochDay(year, month, day);
+    }
+
+    private static int daysInMonth( int year, int month )
+    {
+        switch( month ) {
+        case 2:
+            boolean leapYear = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leapYear ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * Reads at least one and at most maxDigits digits
+     */
+    private static int parseNumber( String text, int[] position, int maxDigits )
+        throws ParseException
+    {
+        int start = position[0];
+        int value = 0;
+        int i = start;
+        while( i < text.length() && i - start < maxDigits ) {
+            char c = text.charAt(i);
+            if( c < '0' || c > '9' ) {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            i++;
+        }
+        if( i == start ) {
+            throw new ParseException("Unparseable date: " + text, start);
+        }
+        position[0] = i;
+        return value;
+    }
+
+    private static void expect( String text, int[] position, char expected )
+        throws ParseException
+    {
+        if( position[0] >= text.length() || text.charAt(position[0]) != expected ) {
+            throw new ParseException("Unparseable date: " + text, position[0]);
+        }
+        position[0]++;
+    }
+
+    private static String format( int epochDay, boolean withDashes )
+    {
+        int[] date = fromEpochDay(epochDay);
+        char[] result = new char[withDashes ? 10 : 8];
+        int year = date[0];
+        for( int i = 3; i >= 0; i-- ) {
+            result[i] = (char) ('0' + year % 10);
+            year /= 10;
+        }
+        int i = 4;
+        if( withDashes ) {
+            result[i++] = '-';
+        }
+        result[i++] = (char) ('0' + date[1] / 10);
+        result[i++] = (char) ('0' + date[1] % 10);
+        if( withDashes ) {
+            result[i++] = '-';
+        }
+        result[i++] = (char) ('0' + date[2] / 10);
+        result[i] = (char) ('0' + date[2] % 10);
+        return new String(result);
+    }
+}
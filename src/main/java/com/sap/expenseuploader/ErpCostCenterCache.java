@@ -0,0 +1,155 @@
+package com.sap.expenseuploader;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.expenseuploader.config.ErpExpenseInputConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Keeps the cost centers of the ERP in local files, one per system and controlling area, because reading
+ * them takes long on large controlling areas. A file younger than the TTL is used as it is. An older file
+ * is still used, but the cost centers are read again in the background for the next run. The refresh is
+ * awaited at the end of the run with {@link #awaitRefresh(long)}; if the run is aborted, the old file is
+ * refreshed next time.
+ */
+public class ErpCostCenterCache
+{
+    private static final Logger logger = LogManager.getLogger(ErpCostCenterCache.class);
+
+    public static final int DEFAULT_TTL_MINUTES = 24 * 60;
+    public static final long DEFAULT_REFRESH_WAIT_MILLIS = 5 * 60 * 1000;
+
+    private final File directory;
+    private final int ttlMinutes;
+    private Thread refresh;
+
+    public ErpCostCenterCache( File directory, int ttlMinutes )
+    {
+        this.directory = directory;
+        this.ttlMinutes = ttlMinutes;
+    }
+
+    /**
+     * Returns the cost centers of the controlling area, from the cache if possible. Only reads from the ERP
+     * while waiting if there is no cache file yet.
+     *
+     * @param erpExpenseInputConfig
+     * @return the cost centers without leading zeros
+     * @throws JCoException
+     */
+    public Set<String> getCostCenters( final ErpExpenseInputConfig erpExpenseInputConfig )
+        throws JCoException
+    {
+        final File file = getFile(erpExpenseInputConfig);
+        List<String> lines = null;
+        try {
+            if( file.exists() ) {
+                lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Ignoring unreadable cost center cache " + file.getAbsolutePath(), e);
+        }
+
+        if( lines == null || lines.isEmpty() ) {
+            Set<String> costCenters = Helper.getErpCostCenters(erpExpenseInputConfig);
+            save(file, costCenters);
+            return costCenters;
+        }
+
+        long age = System.currentTimeMillis() - file.lastModified();
+        Set<String> costCenters = new HashSet<>(lines);
+        logger.info(String.format("Using %s cached cost center(s) of controlling area %s from %s",
+            costCenters.size(),
+            erpExpenseInputConfig.getControllingArea(),
+            file.getAbsolutePath()));
+        if( age > this.ttlMinutes * 60 * 1000L ) {
+            refreshInBackground(erpExpenseInputConfig, file);
+        }
+        return costCenters;
+    }
+
+    /**
+     * Waits until a background refresh has finished, but not longer than the given time
+     */
+    public void awaitRefresh( long timeoutMillis )
+    {
+        Thread refresh;
+        synchronized( this ) {
+            refresh = this.refresh;
+        }
+        if( refresh == null || !refresh.isAlive() ) {
+            return;
+        }
+        logger.info("Waiting for the refresh of the cached cost centers ...");
+        try {
+            refresh.join(timeoutMillis);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if( refresh.isAlive() ) {
+            logger.warn("The cached cost centers are still being refreshed, they will be refreshed again next time");
+        }
+    }
+
+    private synchronized void refreshInBackground( final ErpExpenseInputConfig erpExpenseInputConfig,
+        final File file )
+    {
+        if( this.refresh != null && this.refresh.isAlive() ) {
+            return;
+        }
+        // A daemon thread, so that an aborted run doesn't wait for it; the file is replaced at once in any case
+        this.refresh = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    logger.info("Refreshing the cached cost centers in the background ...");
+                    save(file, Helper.getErpCostCenters(erpExpenseInputConfig));
+                }
+                catch( JCoException | RuntimeException e ) {
+                    logger.warn("Failed to refresh the cached cost centers, will try again next time", e);
+                }
+            }
+        }, "erp-cost-center-refresh");
+        this.refresh.setDaemon(true);
+        this.refresh.start();
+    }
+
+    private File getFile( ErpExpenseInputConfig erpExpenseInputConfig )
+    {
+        String name = String.format("costcenters-%s-%s.txt",
+            erpExpenseInputConfig.getSystemName(),
+            erpExpenseInputConfig.getControllingArea());
+        // Keep the file name valid for any system name
+        return new File(this.directory, name.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Replaces the file at once, so that a crash or a parallel run can't read a partial file
+     */
+    private static void save( File file, Set<String> costCenters )
+    {
+        try {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            List<String> lines = new ArrayList<>(costCenters);
+            Collections.sort(lines);
+            Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.debug("Stored " + costCenters.size() + " cost center(s) in " + file.getAbsolutePath());
+        }
+        catch( IOException e ) {
+            logger.warn("Failed to store the cost centers in " + file.getAbsolutePath(), e);
+        }
+    }
+}
@@ -5,13 +5,21 @@ import com.sap.expenseuploader.config.ErpExpenseInputConfig;
 import com.sap.expenseuploader.config.HcpConfig;
 import com.sap.expenseuploader.config.budget.ExcelBudgetConfig;
 import com.sap.expenseuploader.config.costcenter.ExcelCostCenterConfig;
+import com.sap.expenseuploader.expenses.DedupInput;
+import com.sap.expenseuploader.expenses.DeltaInput;
+import com.sap.expenseuploader.expenses.DeltaStore;
+import com.sap.expenseuploader.expenses.ExpensePipeline;
 import com.sap.expenseuploader.expenses.input.ErpInput;
 import com.sap.expenseuploader.expenses.input.ExcelInput;
 import com.sap.expenseuploader.expenses.input.ExpenseInput;
+import com.sap.expenseuploader.expenses.output.AdaptiveBatchSizer;
 import com.sap.expenseuploader.expenses.output.CliOutput;
 import com.sap.expenseuploader.expenses.output.ExcelOutput;
 import com.sap.expenseuploader.expenses.output.ExpenseHcpOutput;
 import com.sap.expenseuploader.expenses.output.ExpenseOutput;
+import com.sap.expenseuploader.hcp.HcpTransport;
+import com.sap.expenseuploader.hcp.RetryPolicy;
+import com.sap.expenseuploader.metrics.Metrics;
 import com.sap.expenseuploader.model.Expense;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
@@ -53,6 +61,14 @@ public class ExpenseUploader
         options.addOption("h", "help", false, "print this message");
         options.addOption("c", "config", true, "path to configuration file (default is " + DEFAULT_CONFIG_PATH + ")");
         options.addOption("b", "budgets", false, "upload budgets to HCP (optional, needs HCP URL)");
+        options.addOption("tc",
+            "tag_cache",
+            true,
+            "file to keep the tag IDs of HCP between budget uploads (optional)");
+        options.addOption("tcttl",
+            "tag_cache_ttl",
+            true,
+            "minutes the tag cache is used without checking HCP for changes (optional, default is 0)");
 
         // HCP options
         options.addOption("url",
@@ -63,6 +79,67 @@ public class ExpenseUploader
         options.addOption("pass", "hcp_password", true, "your hcp password (optional, will prompt)");
         options.addOption("x", "hcp_proxy", true, "proxy server (optional), e.g. example.com:8080");
         options.addOption("r", "resume", false, "retry uploading failed expense uploading requests from previous run");
+        options.addOption("threads",
+            "hcp_threads",
+            true,
+            "number of parallel expense and budget upload requests to HCP (optional, default is " + HcpConfig.DEFAULT_UPLOAD_THREADS + ")");
+        options.addOption("conn",
+            "hcp_connections",
+            true,
+            "maximum number of connections per HCP host (optional, default is the number of threads)");
+        options.addOption("ct",
+            "hcp_connect_timeout",
+            true,
+            "timeout in seconds for connecting to HCP (optional, default is "
+                + HcpTransport.DEFAULT_CONNECT_TIMEOUT_SECONDS + ")");
+        options.addOption("st",
+            "hcp_socket_timeout",
+            true,
+            "timeout in seconds for waiting on HCP responses (optional, default is "
+                + HcpTransport.DEFAULT_SOCKET_TIMEOUT_SECONDS + ")");
+        options.addOption("ka",
+            "hcp_keep_alive",
+            true,
+            "seconds to keep idle connections to HCP open (optional, default is "
+                + HcpTransport.DEFAULT_KEEP_ALIVE_SECONDS + ")");
+        options.addOption("gzip", "hcp_gzip", false, "compress request bodies sent to HCP with gzip (optional)");
+        options.addOption("retries",
+            "hcp_retries",
+            true,
+            "how often a request is retried while HCP is unavailable (optional, default is "
+                + RetryPolicy.DEFAULT_MAX_RETRIES + ")");
+        options.addOption("rps",
+            "hcp_requests_per_second",
+            true,
+            "maximum number of requests per second sent to HCP (optional, default is unlimited)");
+        options.addOption("bps",
+            "hcp_bytes_per_second",
+            true,
+            "maximum number of bytes per second sent to HCP (optional, default is unlimited)");
+        options.addOption("rlf",
+            "hcp_rate_limit_file",
+            true,
+            "file to share the HCP rate limits with other uploader processes on this machine (optional)");
+        options.addOption("metrics",
+            "metrics_file",
+            true,
+            "write metrics of the run to this file at the end, as JSON if it ends with .json, otherwise in the Prometheus text format (optional)");
+        options.addOption("jmx", "metrics_jmx", false, "show metrics of the run via JMX while it runs (optional)");
+        options.addOption("bmin",
+            "batch_min",
+            true,
+            "minimum number of expenses per upload request (optional, default is "
+                + AdaptiveBatchSizer.DEFAULT_MIN_BATCH_SIZE + ")");
+        options.addOption("bmax",
+            "batch_max",
+            true,
+            "maximum number of expenses per upload request (optional, default is "
+                + AdaptiveBatchSizer.DEFAULT_MAX_BATCH_SIZE + ")");
+        options.addOption("bbytes",
+            "batch_max_bytes",
+            true,
+            "maximum size of an upload request in bytes (optional, default is "
+                + AdaptiveBatchSizer.DEFAULT_MAX_BATCH_BYTES + ")");
 
         // Options for Expenses
         options.addOption("in_erp",
@@ -77,6 +154,40 @@ public class ExpenseUploader
         options.addOption("f", "from", true, "lower posting date in YYYYMMDD format");
         options.addOption("t", "to", true, "higher posting date in YYYYMMDD format (optional)");
         options.addOption("p", "period", true, "period (optional), e.g. 001");
+        options.addOption("sd",
+            "erp_slice_days",
+            true,
+            "read expenses from the ERP in posting date windows of this many days (optional)");
+        options.addOption("scc",
+            "erp_slice_cost_centers",
+            true,
+            "read expenses from the ERP for this many cost centers at once (optional)");
+        options.addOption("et",
+            "erp_threads",
+            true,
+            "number of parallel reads from the ERP (optional, default is 1), needs a JCo destination pool of this size");
+        options.addOption("ccc",
+            "erp_cost_center_cache",
+            true,
+            "directory in which the cost centers of the ERP are cached (optional)");
+        options.addOption("cccttl",
+            "erp_cost_center_cache_ttl",
+            true,
+            "minutes after which the cached ERP cost centers are refreshed in the background (optional, default is "
+                + ErpCostCenterCache.DEFAULT_TTL_MINUTES + ")");
+        options.addOption("dedup",
+            "deduplicate",
+            false,
+            "upload expenses with exactly the same fields only once, e.g. of overlapping inputs (optional)");
+        options.addOption("delta",
+            "delta_store",
+            true,
+            "file to remember the uploaded expenses in, later runs only upload new or changed expenses (optional)");
+        options.addOption("dlb",
+            "delta_lookback_days",
+            true,
+            "days before the last uploaded posting date which are read again in delta mode (optional, default is "
+                + DeltaStore.DEFAULT_LOOKBACK_DAYS + ")");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
@@ -107,6 +218,33 @@ public class ExpenseUploader
                 cmd.getOptionValue("pass"),
                 cmd.getOptionValue("x"),
                 cmd.hasOption("r"));
+            if( cmd.hasOption("threads") ) {
+                hcpConfig.setUploadThreads(getPositiveIntOption(cmd, "threads"));
+            }
+            if( cmd.hasOption("conn") ) {
+                hcpConfig.setMaxConnectionsPerHost(getPositiveIntOption(cmd, "conn"));
+            }
+            if( cmd.hasOption("ct") ) {
+                hcpConfig.setConnectTimeoutSeconds(getPositiveIntOption(cmd, "ct"));
+            }
+            if( cmd.hasOption("st") ) {
+                hcpConfig.setSocketTimeoutSeconds(getPositiveIntOption(cmd, "st"));
+            }
+            if( cmd.hasOption("ka") ) {
+                hcpConfig.setKeepAliveSeconds(getPositiveIntOption(cmd, "ka"));
+            }
+            hcpConfig.setCompressRequests(cmd.hasOption("gzip"));
+            if( cmd.hasOption("rps") || cmd.hasOption("bps") ) {
+                hcpConfig.setRateLimit(cmd.hasOption("rps") ? getPositiveIntOption(cmd, "rps") : 0,
+                    cmd.hasOption("bps") ? getPositiveIntOption(cmd, "bps") : 0,
+                    cmd.hasOption("rlf") ? new File(cmd.getOptionValue("rlf")) : null);
+            } else if( cmd.hasOption("rlf") ) {
+                logger.error("The option 'hcp_rate_limit_file' needs 'hcp_requests_per_second' or 'hcp_bytes_per_second'");
+                System.exit(1);
+            }
+            if( cmd.hasOption("retries") ) {
+                hcpConfig.setMaxRetries(getPositiveIntOption(cmd, "retries"));
+            }
         }
 
         // Prepare config for expenses, create inputs and outputs
@@ -114,13 +252,32 @@ public class ExpenseUploader
         ErpExpenseInputConfig erpExpenseInputConfig = new ErpExpenseInputConfig();
         ExcelCostCenterConfig excelCostCenterConfig = new ExcelCostCenterConfig(configPath);
         List<ExpenseOutput> expenseOutputs = new ArrayList<>();
+        ExpenseHcpOutput expenseHcpOutput = null;
+        ErpCostCenterCache erpCostCenterCache = null;
         if( cmd.hasOption("in_erp") ) {
             erpExpenseInputConfig = new ErpExpenseInputConfig(cmd.getOptionValue("in_erp"),
                 cmd.getOptionValue("ca"),
                 cmd.getOptionValue("f"),
                 cmd.getOptionValue("t"),
                 cmd.getOptionValue("p"));
-            expenseInput = new ErpInput(erpExpenseInputConfig, excelCostCenterConfig);
+            if( cmd.hasOption("sd") ) {
+                erpExpenseInputConfig.setSliceDays(getPositiveIntOption(cmd, "sd"));
+            }
+            if( cmd.hasOption("scc") ) {
+                erpExpenseInputConfig.setSliceCostCenters(getPositiveIntOption(cmd, "scc"));
+            }
+            if( cmd.hasOption("et") ) {
+                erpExpenseInputConfig.setThreads(getPositiveIntOption(cmd, "et"));
+            }
+            ErpInput erpInput = new ErpInput(erpExpenseInputConfig, excelCostCenterConfig);
+            if( cmd.hasOption("ccc") ) {
+                erpCostCenterCache = new ErpCostCenterCache(new File(cmd.getOptionValue("ccc")),
+                    cmd.hasOption("cccttl")
+                        ? getPositiveIntOption(cmd, "cccttl")
+                        : ErpCostCenterCache.DEFAULT_TTL_MINUTES);
+                erpInput.setCostCenterCache(erpCostCenterCache);
+            }
+            expenseInput = erpInput;
         }
         if( cmd.hasOption("in_xls") ) {
             if( expenseInput != null ) {
@@ -138,7 +295,25 @@ public class ExpenseUploader
                 System.exit(1);
             }
 
-            expenseOutputs.add(new ExpenseHcpOutput(hcpConfig, excelCostCenterConfig, erpExpenseInputConfig));
+            expenseHcpOutput = new ExpenseHcpOutput(hcpConfig, excelCostCenterConfig, erpExpenseInputConfig);
+            if( cmd.hasOption("bmin") || cmd.hasOption("bmax") || cmd.hasOption("bbytes") ) {
+                int minBatchSize = cmd.hasOption("bmin")
+                    ? getPositiveIntOption(cmd, "bmin")
+                    : AdaptiveBatchSizer.DEFAULT_MIN_BATCH_SIZE;
+                int maxBatchSize = cmd.hasOption("bmax")
+                    ? getPositiveIntOption(cmd, "bmax")
+                    : AdaptiveBatchSizer.DEFAULT_MAX_BATCH_SIZE;
+                if( minBatchSize > maxBatchSize ) {
+                    logger.error("The option 'batch_min' must not be larger than 'batch_max'");
+                    System.exit(1);
+                }
+                expenseHcpOutput.setBatchSizer(new AdaptiveBatchSizer(minBatchSize,
+                    maxBatchSize,
+                    cmd.hasOption("bbytes")
+                        ? getPositiveIntOption(cmd, "bbytes")
+                        : AdaptiveBatchSizer.DEFAULT_MAX_BATCH_BYTES));
+            }
+            expenseOutputs.add(expenseHcpOutput);
         }
         if( cmd.hasOption("out_xls") ) {
             expenseOutputs.add(new ExcelOutput(cmd.getOptionValue("out_xls")));
@@ -157,46 +332,158 @@ public class ExpenseUploader
             System.exit(1);
         }
 
+        if( cmd.hasOption("dedup") && expenseInput != null ) {
+            expenseInput = new DedupInput(expenseInput);
+        }
+
+        // Prepare delta mode, only new or changed expenses are read and uploaded
+        DeltaStore deltaStore = null;
+        if( cmd.hasOption("delta") && expenseInput != null ) {
+            if( expenseHcpOutput == null ) {
+                logger.error("Delta mode needs the HCP output, which records the uploaded expenses");
+                System.exit(1);
+            }
+            deltaStore = DeltaStore.load(new File(cmd.getOptionValue("delta")), cmd.getOptionValue("ca"));
+            if( cmd.hasOption("in_erp") && !cmd.hasOption("r") ) {
+                int lookbackDays =
+                    cmd.hasOption("dlb") ? getPositiveIntOption(cmd, "dlb") : DeltaStore.DEFAULT_LOOKBACK_DAYS;
+                String deltaFromTime =
+                    deltaStore.getDeltaFromTime(excelCostCenterConfig.getCostCenterList(), lookbackDays);
+                if( deltaFromTime != null
+                    && deltaFromTime.compareTo(erpExpenseInputConfig.getFromTime().replace("-", "")) > 0 ) {
+                    logger.info("Delta mode: reading expenses from " + deltaFromTime + " on");
+                    erpExpenseInputConfig.setFromTime(deltaFromTime);
+                }
+            }
+            expenseInput = new DeltaInput(expenseInput, deltaStore, excelCostCenterConfig);
+            expenseHcpOutput.setDeltaStore(deltaStore);
+        }
+
         // Prepare budgets
         if( cmd.hasOption("b") && !cmd.hasOption("url") ) {
             logger.error("Please specify the HCP URL to upload budgets");
             System.exit(1);
         }
 
-        // Do the work
-        // 1: Upload expenses
-        if( expenseInput != null ) {
-            List<Expense> expenses = Collections.emptyList();
-            // in case resume functionality is required, don't read expenses from the input sources
-            if( !cmd.hasOption("r") ) {
-                expenses = expenseInput.getExpenses();
-            } else {
-                logger.warn(
-                    "Resume was specified, will not read expenses from input source. Rather, the expenses will be read from one of the json files in the 'requests' folder.");
+        // Prepare metrics, they are also written if the run fails or exits early
+        if( cmd.hasOption("jmx") ) {
+            Metrics.registerMBean();
+        }
+        if( cmd.hasOption("metrics") ) {
+            final File metricsFile = new File(cmd.getOptionValue("metrics"));
+            logger.info("Metrics will be written to " + metricsFile.getAbsolutePath());
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        Metrics.writeTo(metricsFile);
+                    }
+                    catch( IOException e ) {
+                        // Logging may be shut down already
+                        System.err.println("Failed to write the metrics to " + metricsFile + ": " + e);
+                    }
+                }
+            }, "metrics-writer"));
+        }
+
+        try {
+            // Do the work
+            // 1: Upload expenses
+            if( expenseInput != null ) {
+                try {
+                    logger.info("");
+                    // in case resume functionality is required, don't read expenses from the input sources
+                    if( cmd.hasOption("r") ) {
+                        logger.warn(
+                            "Resume was specified, will not read expenses from input source. Rather, the expenses will be read from one of the json files in the 'requests' folder.");
+                        logger.info("== Uploading Expenses ==");
+                        try {
+                            for( ExpenseOutput output : expenseOutputs ) {
+                                output.putExpenses(Collections.<Expense>emptyIterator());
+                            }
+                        }
+                        finally {
+                            // Remember the re-uploaded batches, so that the next delta run doesn't upload them again
+                            if( deltaStore != null ) {
+                                deltaStore.save();
+                            }
+                        }
+                    } else {
+                        // The outputs consume the expenses while they are being read
+                        logger.info("== Uploading Expenses ==");
+                        long count;
+                        try {
+                            count = new ExpensePipeline(expenseInput, expenseOutputs).run();
+                        }
+                        finally {
+                            // Also remember the batches which were uploaded before a failure
+                            if( deltaStore != null ) {
+                                deltaStore.save();
+                            }
+                        }
+                        if( count == 0 ) {
+                            logger.info("No expenses to upload!");
+                        }
+                    }
+                }
+                finally {
+                    if( erpCostCenterCache != null ) {
+                        erpCostCenterCache.awaitRefresh(ErpCostCenterCache.DEFAULT_REFRESH_WAIT_MILLIS);
+                    }
+                }
             }
 
+            // 2: Upload budgets
             logger.info("");
-            if( !cmd.hasOption("r") && (expenses == null || expenses.size() == 0) ) {
-                logger.info("No expenses to upload!");
+            if( cmd.hasOption("b") ) {
+                logger.info("== Uploading Budgets ==");
+                BudgetHcpOutput budgetHcpOutput = new BudgetHcpOutput(new ExcelBudgetConfig(configPath), hcpConfig);
+                if( cmd.hasOption("tc") ) {
+                    budgetHcpOutput.setTagCache(new File(cmd.getOptionValue("tc")),
+                        cmd.hasOption("tcttl") ? getPositiveIntOption(cmd, "tcttl") : 0);
+                }
+                budgetHcpOutput.putBudgets();
             } else {
-                logger.info("== Uploading Expenses ==");
-                for( ExpenseOutput output : expenseOutputs ) {
-                    output.putExpenses(expenses);
+                logger.info("No budgets will be uploaded! Consider using the option 'budgets' if they are required.");
+            }
+
+            if( hcpConfig != null ) {
+                logger.info("Fetched " + hcpConfig.getCsrfTokenFetchCount() + " CSRF token(s)");
+                if( hcpConfig.getRetryCount() > 0 ) {
+                    logger.info("Retried " + hcpConfig.getRetryCount() + " request(s)");
                 }
             }
         }
-
-        // 2: Upload budgets
-        logger.info("");
-        if( cmd.hasOption("b") ) {
-            logger.info("== Uploading Budgets ==");
-            BudgetHcpOutput budgetHcpOutput = new BudgetHcpOutput(new ExcelBudgetConfig(configPath), hcpConfig);
-            budgetHcpOutput.putBudgets();
-        } else {
-            logger.info("No budgets will be uploaded! Consider using the option 'budgets' if they are required.");
+        finally {
+            // Also release the connections and the rate limit file if the upload fails
+            if( hcpConfig != null ) {
+                hcpConfig.getTransport().close();
+            }
         }
 
         logger.info("");
         logger.info("All done.");
     }
+
+    /**
+     * Reads a numeric command line option, exits if it is not a positive number
+     */
+    private static int getPositiveIntOption( CommandLine cmd, String option )
+    {
+        String value = cmd.getOptionValue(option);
+        try {
+            int result = Integer.parseInt(value);
+            if( result > 0 ) {
+                return result;
+            }
+        }
+        catch( NumberFormatException e ) {
+            // Handled below
+        }
+        logger.error(String.format("Option '%s' must be a positive number, but was '%s'", option, value));
+        System.exit(1);
+        return 0;
+    }
 }
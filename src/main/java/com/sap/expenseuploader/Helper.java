@@ -2,11 +2,14 @@ package com.sap.expenseuploader;
 
 import com.sap.conn.jco.*;
 import com.sap.expenseuploader.config.ErpExpenseInputConfig;
+import com.sap.expenseuploader.metrics.Metrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Represents a library of helper functions which can be used by other classes
@@ -16,11 +19,51 @@ public class Helper
     private static final String COST_CENTER_BAPI_NAME = "BAPI_COSTCENTER_GETLIST";
     private static final String COST_CENTER_TABLE_NAME = "COSTCENTER_LIST";
 
+    // Upper limit for the interned strings, so that unique values can't fill up the heap
+    private static final int MAX_INTERNED_STRINGS = 100000;
+    private static final ConcurrentMap<String, String> INTERNED_STRINGS = new ConcurrentHashMap<>();
+
+    /**
+     * Removes the leading zeros of a string, but keeps the last zero of a string with only zeros.
+     * Same as {@code str.replaceFirst("^0+(?!$)", "")}, but without regex and without allocation
+     * if there are no leading zeros.
+     */
     public static String stripLeadingZeros( String str )
     {
-        return str.replaceFirst("^0+(?!$)", "");
+        int lastIndex = str.length() - 1;
+        int start = 0;
+        while( start < lastIndex && str.charAt(start) == '0' ) {
+            start++;
+        }
+        return start == 0 ? str : str.substring(start);
+    }
+
+    /**
+     * Returns a canonical instance of the given string, so that values which repeat a lot
+     * (cost centers, accounts, internal orders, ...) are only kept once in memory.
+     */
+    public static String intern( String str )
+    {
+        if( str == null ) {
+            return null;
+        }
+        String interned = INTERNED_STRINGS.get(str);
+        if( interned != null ) {
+            return interned;
+        }
+        if( INTERNED_STRINGS.size() >= MAX_INTERNED_STRINGS ) {
+            return str;
+        }
+        interned = INTERNED_STRINGS.putIfAbsent(str, str);
+        return interned != null ? interned : str;
     }
 
+    /**
+     * Reads all cost centers of the controlling area from the ERP. Doesn't need a stateful session,
+     * so it can also be called in the background.
+     *
+     * @return the cost centers without leading zeros
+     */
     public static Set<String> getErpCostCenters( ErpExpenseInputConfig erpExpenseInputConfig )
         throws JCoException
     {
@@ -30,14 +73,15 @@ public class Helper
 
         JCoDestination destination = erpExpenseInputConfig.getJcoDestination();
         JCoRepository repository = destination.getRepository();
-        JCoContext.begin(destination);
         JCoFunction bapiCostCenterList = repository.getFunctionTemplate(COST_CENTER_BAPI_NAME).getFunction();
 
         bapiCostCenterList.getImportParameterList()
             .setValue("CONTROLLINGAREA", erpExpenseInputConfig.getControllingArea());
 
         // Execute BAPI
+        final long start = System.nanoTime();
         bapiCostCenterList.execute(destination);
+        Metrics.histogram("erp_bapi_seconds", "bapi", COST_CENTER_BAPI_NAME).observeSince(start);
 
         // Read returned table
         JCoTable costCenterTable = bapiCostCenterList.getTableParameterList().getTable(COST_CENTER_TABLE_NAME);
@@ -0,0 +1,138 @@
+package com.sap.expenseuploader;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs with open addressing. Needs about 16 bytes per value instead of
+ * the ~50 bytes of a {@code HashSet<Long>}, and adding or looking up a value doesn't allocate.
+ * Not thread-safe.
+ */
+public class LongHashSet
+{
+    // 0 marks a free slot, so the value 0 itself is stored separately
+    private static final long FREE = 0L;
+
+    private long[] slots;
+    private int size = 0;
+    private boolean containsFree = false;
+
+    public LongHashSet()
+    {
+        this(16);
+    }
+
+    public LongHashSet( int expectedSize )
+    {
+        int capacity = 16;
+        while( capacity < expectedSize * 2 ) {
+            capacity <<= 1;
+        }
+        this.slots = new long[capacity];
+    }
+
+    /**
+     * @return true if the value wasn't in the set before
+     */
+    public boolean add( long value )
+    {
+        if( value == FREE ) {
+            if( this.containsFree ) {
+                return false;
+            }
+            this.containsFree = true;
+            this.size++;
+            return true;
+        }
+        int mask = this.slots.length - 1;
+        int index = mix(value) & mask;
+        while( this.slots[index] != FREE ) {
+            if( this.slots[index] == value ) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        this.slots[index] = value;
+        this.size++;
+        // Keep the load factor at most 1/2, so the probe sequences stay short
+        if( this.size * 2 > this.slots.length ) {
+            rehash(this.slots.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains( long value )
+    {
+        if( value == FREE ) {
+            return this.containsFree;
+        }
+        int mask = this.slots.length - 1;
+        int index = mix(value) & mask;
+        while( this.slots[index] != FREE ) {
+            if( this.slots[index] == value ) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /**
+     * @return all values in no particular order
+     */
+    public long[] toArray()
+    {
+        long[] result = new long[this.size];
+        int i = 0;
+        if( this.containsFree ) {
+            result[i++] = FREE;
+        }
+        for( long slot : this.slots ) {
+            if( slot != FREE ) {
+                result[i++] = slot;
+            }
+        }
+        return result;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(this.slots, FREE);
+        this.size = 0;
+        this.containsFree = false;
+    }
+
+    private void rehash( int capacity )
+    {
+        long[] oldSlots = this.slots;
+        this.slots = new long[capacity];
+        int mask = capacity - 1;
+        for( long value : oldSlots ) {
+            if( value != FREE ) {
+                int index = mix(value) & mask;
+                while( this.slots[index] != FREE ) {
+                    index = (index + 1) & mask;
+                }
+                this.slots[index] = value;
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of the value, so that values which only differ in their high bits don't collide
+     */
+    private static int mix( long value )
+    {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,97 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.expenses.output.ExpenseHcpOutput;
+import com.sap.expenseuploader.expenses.output.UploadJournal;
+import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Shows the batches stored in the 'requests' folder of an expense upload, i.e. their upload state, payloads
+ * and the responses of HCP
+ */
+public class RequestInspector
+{
+    private static final Logger logger = LogManager.getLogger(RequestInspector.class);
+
+    public static void main( String[] args )
+        throws IOException, ParseException
+    {
+        Options options = new Options();
+        options.addOption("h", "help", false, "print this message");
+        options.addOption("d",
+            "directory",
+            true,
+            "the requests folder (optional, default is '" + ExpenseHcpOutput.REQ_DUMP_FOLDER + "')");
+        options.addOption("l", "list", false, "list all batches with their upload state");
+        options.addOption("f", "failed", false, "list only the batches which were not uploaded successfully");
+        options.addOption("p", "payload", true, "print the payload of the batch with the given ID");
+        options.addOption("rsp", "response", true, "print the last response to the batch with the given ID");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if( cmd.hasOption("h") || !(cmd.hasOption("l") || cmd.hasOption("f") || cmd.hasOption("p")
+            || cmd.hasOption("rsp")) ) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(" ", options);
+            return;
+        }
+
+        Path folder = cmd.hasOption("d") ? Paths.get(cmd.getOptionValue("d")) : ExpenseHcpOutput.REQ_DUMP_FOLDER;
+        if( !UploadJournal.exists(folder) ) {
+            logger.error("There is no upload journal in " + folder.toAbsolutePath());
+            System.exit(1);
+        }
+
+        // Read-only, the upload may still be running
+        try( UploadJournal journal = UploadJournal.openReadOnly(folder) ) {
+            if( cmd.hasOption("l") || cmd.hasOption("f") ) {
+                int failed = 0;
+                for( UploadJournal.Batch batch : journal.getBatches() ) {
+                    if( !batch.isAcknowledged() ) {
+                        failed++;
+                    } else if( cmd.hasOption("f") ) {
+                        continue;
+                    }
+                    System.out.println(String.format("batch %s\tuser %s\t%s expense(s)\t%s",
+                        batch.getId(),
+                        batch.getUser(),
+                        batch.getExpenseCount(),
+                        batch.getStatusCode() == 0 ? "no response" : "HTTP " + batch.getStatusCode()));
+                }
+                System.out.println(String.format("%s batch(es), %s not uploaded successfully",
+                    journal.getBatchCount(),
+                    failed));
+            }
+            if( cmd.hasOption("p") ) {
+                UploadJournal.Batch batch = getBatch(journal, cmd.getOptionValue("p"));
+                System.out.println(new String(journal.readPayload(batch), StandardCharsets.UTF_8));
+            }
+            if( cmd.hasOption("rsp") ) {
+                UploadJournal.Batch batch = getBatch(journal, cmd.getOptionValue("rsp"));
+                if( !batch.hasResponse() ) {
+                    logger.error("There is no response to batch " + batch.getId());
+                    System.exit(1);
+                }
+                System.out.println(new String(journal.readResponse(batch), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static UploadJournal.Batch getBatch( UploadJournal journal, String id )
+    {
+        for( UploadJournal.Batch batch : journal.getBatches() ) {
+            if( String.valueOf(batch.getId()).equals(id) ) {
+                return batch;
+            }
+        }
+        logger.error("There is no batch " + id);
+        System.exit(1);
+        return null;
+    }
+}
@@ -4,12 +4,13 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.sap.expenseuploader.config.HcpConfig;
 import com.sap.expenseuploader.config.budget.BudgetConfig;
+import com.sap.expenseuploader.hcp.HcpTransport;
 import com.sap.expenseuploader.model.BudgetEntry;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.ContentType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONArray;
@@ -18,11 +19,11 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import javax.management.relation.RoleNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static com.sap.expenseuploader.config.HcpConfig.getBodyFromResponse;
 
@@ -36,84 +37,179 @@ public class BudgetHcpOutput
 
     BudgetConfig budgetConfig;
     HcpConfig hcpConfig;
+    HcpTransport transport;
 
-    /**
-     * this map stores tag groups along with their IDs in the realspend api
-     * [ KEY , VALUE ] = [ tagGroupName , tagGroupID ]
-     * <p>
-     * NOTE: all tag group names are stored lower case strings.
-     */
-    private Map<String, Long> tagGroupIds = new HashMap<>();
+    // Tags are created in bulk, but not more than this many per request
+    public static final int MAX_TAGS_PER_REQUEST = 1000;
 
-    /**
-     * this map stores the tags belonging to each tag group
-     * [ KEY , VALUE ] = [ tagGroupName , [ tagName , tagID ] ]
-     * <p>
-     * NOTE: all tag names and tag group names are stored in lower case strings.
-     */
-    private Map<String, Map<String, Long>> tagNameIds = new HashMap<>();
+    private TagIdCache tagIds;
+
+    // Optional file to keep the tag IDs between runs
+    private File tagCacheFile;
+    private int tagCacheTtlMinutes = 0;
 
     public BudgetHcpOutput( BudgetConfig budgetConfig, HcpConfig hcpConfig )
     {
         this.budgetConfig = budgetConfig;
         this.hcpConfig = hcpConfig;
+        this.transport = hcpConfig.getTransport();
+        this.tagIds = new TagIdCache(hcpConfig.toString());
+    }
+
+    /**
+     * Keeps the tag IDs in the given file. Within the TTL the file is used without asking HCP,
+     * afterwards the tags are only downloaded again if they have changed.
+     *
+     * @param tagCacheFile
+     * @param ttlMinutes
+     */
+    public void setTagCache( File tagCacheFile, int ttlMinutes )
+    {
+        this.tagCacheFile = tagCacheFile;
+        this.tagCacheTtlMinutes = ttlMinutes;
     }
 
+    /**
+     * Uploads the budgets of all users. The requests of all users and endpoints are independent of each other,
+     * so they run in parallel on the configured number of upload threads.
+     */
     public void putBudgets()
         throws IOException, URISyntaxException, ParseException, RoleNotFoundException
     {
         this.fillTagIdMaps();
+        this.createMissingTags();
 
-        for( String user : budgetConfig.getBudgetUserList() ) {
-
-            logger.info("Uploading budgets for tags of user " + user + " ...");
+        List<Callable<Void>> uploads = new ArrayList<>();
+        for( final String user : budgetConfig.getBudgetUserList() ) {
 
             // Upload tag budgets
             Map<String, Map<String, List<BudgetEntry>>> userTagGroups = budgetConfig.getTagBudgetsOfUser(user);
-            for( String userTagGroup : userTagGroups.keySet() ) {
-                Map<String, List<BudgetEntry>> entries = userTagGroups.get(userTagGroup);
-                putTagBudgets(userTagGroup, user, entries);
+            for( final String userTagGroup : userTagGroups.keySet() ) {
+                final Map<String, List<BudgetEntry>> entries = userTagGroups.get(userTagGroup);
+                uploads.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws Exception
+                    {
+                        putTagBudgets(userTagGroup, user, entries);
+                        return null;
+                    }
+                });
             }
 
-            logger.info("Uploading budgets for master data of user " + user + " ...");
-
-            Map<String, List<BudgetEntry>> masterDataBudgets;
-
             // Upload overall budgets
-            putOverallBudgets(user, budgetConfig.getOverallBudgetsOfUser(user));
-
-            // Upload account budgets
-            masterDataBudgets = budgetConfig.getMasterDataBudgetsOfUser(user, "account");
-            putMasterDataBudgets("account", user, masterDataBudgets);
-
-            // Upload account node budgets
-            masterDataBudgets = budgetConfig.getMasterDataBudgetsOfUser(user, "accountnode");
-            putMasterDataBudgets("account/hierarchy/node", user, masterDataBudgets);
-
-            // Upload cost center budgets
-            masterDataBudgets = budgetConfig.getMasterDataBudgetsOfUser(user, "costcenter");
-            putMasterDataBudgets("cost-center", user, masterDataBudgets);
-
-            // Upload cost center node budgets
-            masterDataBudgets = budgetConfig.getMasterDataBudgetsOfUser(user, "costcenternode");
-            putMasterDataBudgets("cost-center/hierarchy/node", user, masterDataBudgets);
+            final List<BudgetEntry> overallBudgets = budgetConfig.getOverallBudgetsOfUser(user);
+            uploads.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws Exception
+                {
+                    putOverallBudgets(user, overallBudgets);
+                    return null;
+                }
+            });
+
+            // Upload account, account node, cost center, cost center node and internal order budgets
+            uploads.add(masterDataUpload("account", "account", user));
+            uploads.add(masterDataUpload("account/hierarchy/node", "accountnode", user));
+            uploads.add(masterDataUpload("cost-center", "costcenter", user));
+            uploads.add(masterDataUpload("cost-center/hierarchy/node", "costcenternode", user));
+            uploads.add(masterDataUpload("internal-order", "internalorder", user));
+        }
 
-            // Upload internal order budgets
-            masterDataBudgets = budgetConfig.getMasterDataBudgetsOfUser(user, "internalorder");
-            putMasterDataBudgets("internal-order", user, masterDataBudgets);
+        int threads = Math.max(Math.min(this.hcpConfig.getUploadThreads(), uploads.size()), 1);
+        logger.info(String.format("Uploading budgets of %s user(s) in %s request(s) using %s thread(s) ...",
+            budgetConfig.getBudgetUserList().size(),
+            uploads.size(),
+            threads));
+        final long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for( Callable<Void> upload : uploads ) {
+                futures.add(pool.submit(upload));
+            }
+            for( Future<Void> future : futures ) {
+                future.get();
+            }
         }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if( cause instanceof IOException ) {
+                throw (IOException) cause;
+            } else if( cause instanceof URISyntaxException ) {
+                throw (URISyntaxException) cause;
+            } else if( cause instanceof ParseException ) {
+                throw (ParseException) cause;
+            } else if( cause instanceof RoleNotFoundException ) {
+                throw (RoleNotFoundException) cause;
+            }
+            throw new RuntimeException("Failed to put budgets", cause);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while putting budgets", e);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        logger.info(String.format("Finished budget upload in %.1f second(s)",
+            (System.currentTimeMillis() - start) / 1000.0));
+    }
+
+    private Callable<Void> masterDataUpload( final String endpoint, String masterDataType, final String user )
+    {
+        final Map<String, List<BudgetEntry>> entries = budgetConfig.getMasterDataBudgetsOfUser(user, masterDataType);
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                putMasterDataBudgets(endpoint, user, entries);
+                return null;
+            }
+        };
     }
 
     private void fillTagIdMaps()
         throws URISyntaxException, IOException, ParseException
     {
+        TagIdCache cachedTagIds = null;
+        if( this.tagCacheFile != null ) {
+            cachedTagIds = TagIdCache.load(this.tagCacheFile);
+            if( cachedTagIds != null && !this.hcpConfig.toString().equals(cachedTagIds.getOwner()) ) {
+                logger.info("Tag cache " + this.tagCacheFile + " belongs to a different HCP account, ignoring it");
+                cachedTagIds = null;
+            }
+        }
+        if( cachedTagIds != null && cachedTagIds.getAge() < this.tagCacheTtlMinutes * 60 * 1000L ) {
+            logger.info(String.format("Using %s cached tag ID(s) from %s", cachedTagIds.size(), this.tagCacheFile));
+            this.tagIds = cachedTagIds;
+            return;
+        }
+
         URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/tagging/dimension");
         Request request =
             Request.Get(uriBuilder.build()).addHeader("Authorization", "Basic " + this.hcpConfig.buildAuthString());
-        HttpResponse response = this.hcpConfig.withOptionalProxy(request).execute().returnResponse();
+        if( cachedTagIds != null && cachedTagIds.getEtag() != null ) {
+            request.addHeader("If-None-Match", cachedTagIds.getEtag());
+        }
+        HttpResponse response = this.hcpConfig.executeWithRetry(request);
 
         // Check response
         int statusCode = response.getStatusLine().getStatusCode();
+        if( statusCode == 304 ) {
+            logger.info(String.format("Tags are unchanged, using %s cached tag ID(s) from %s",
+                cachedTagIds.size(),
+                this.tagCacheFile));
+            this.tagIds = cachedTagIds;
+            this.tagIds.setValidated(this.tagIds.getEtag());
+            saveTagCache();
+            return;
+        }
         if( statusCode != 200 ) {
             logger.error(String.format("Got http code %s while reading tags for user %s",
                 statusCode,
@@ -132,14 +228,68 @@ public class BudgetHcpOutput
         for( JSONObject jsonObject : (Iterable<JSONObject>) propertyMap.get("dimensions") ) {
             long tagGroupId = (long) jsonObject.get("id");
             String tagGroupName = (String) jsonObject.get("name");
-            this.tagGroupIds.put(tagGroupName.toLowerCase(), tagGroupId);
-            Map<String, Long> tagGroupValuesMap = new HashMap<>();
+            this.tagIds.putTagGroup(tagGroupName, tagGroupId);
             JSONArray tagGroupValues = (JSONArray) jsonObject.get("values");
             for( JSONObject tagObject : (Iterable<JSONObject>) tagGroupValues ) {
                 String tagName = (String) tagObject.get("name");
-                tagGroupValuesMap.put(tagName.toLowerCase(), (Long) tagObject.get("id"));
+                this.tagIds.putTag(tagGroupName, tagName, (Long) tagObject.get("id"));
+            }
+        }
+        Header etag = response.getFirstHeader("ETag");
+        this.tagIds.setValidated(etag == null ? null : etag.getValue());
+        saveTagCache();
+    }
+
+    /**
+     * Stores the current tag IDs in the tag cache file, if there is one
+     */
+    private void saveTagCache()
+        throws IOException
+    {
+        if( this.tagCacheFile != null ) {
+            this.tagIds.save(this.tagCacheFile);
+        }
+    }
+
+    /**
+     * Creates all tag groups and tags of the budget config which don't exist on HCP yet,
+     * using as few requests as possible
+     */
+    private void createMissingTags()
+        throws URISyntaxException, IOException, ParseException
+    {
+        Map<String, Set<String>> allTags = this.budgetConfig.getAllTags();
+
+        List<String> missingTagGroups = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for( String tagGroupName : allTags.keySet() ) {
+            if( this.tagIds.getTagGroupId(tagGroupName) == null && seen.add(tagGroupName.toLowerCase()) ) {
+                missingTagGroups.add(tagGroupName);
             }
-            this.tagNameIds.put(tagGroupName.toLowerCase(), tagGroupValuesMap);
+        }
+        for( int i = 0; i < missingTagGroups.size(); i += MAX_TAGS_PER_REQUEST ) {
+            createTagGroups(missingTagGroups.subList(i, Math.min(i + MAX_TAGS_PER_REQUEST, missingTagGroups.size())));
+        }
+
+        // [ tagGroupName , tagName ]
+        List<String[]> missingTags = new ArrayList<>();
+        seen.clear();
+        for( Map.Entry<String, Set<String>> tagGroup : allTags.entrySet() ) {
+            for( String tagName : tagGroup.getValue() ) {
+                if( this.tagIds.getTagId(tagGroup.getKey(), tagName) == null
+                    && seen.add(tagGroup.getKey().toLowerCase() + "/" + tagName.toLowerCase()) ) {
+                    missingTags.add(new String[] { tagGroup.getKey(), tagName });
+                }
+            }
+        }
+        for( int i = 0; i < missingTags.size(); i += MAX_TAGS_PER_REQUEST ) {
+            createTags(missingTags.subList(i, Math.min(i + MAX_TAGS_PER_REQUEST, missingTags.size())));
+        }
+
+        if( !missingTagGroups.isEmpty() || !missingTags.isEmpty() ) {
+            logger.info(String.format("Created %s tag group(s) and %s tag(s)", missingTagGroups.size(),
+                missingTags.size()));
+            saveTagCache();
         }
     }
 
@@ -169,10 +319,8 @@ public class BudgetHcpOutput
         payload.add("budgets", budgets);
 
         URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/budget");
-        Request request = Request.Put(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payload.toString(), ContentType.APPLICATION_JSON);
-        HttpResponse response = this.hcpConfig.withOptionalProxy(request).execute().returnResponse();
+        Request request = this.transport.withJsonBody(Request.Put(uriBuilder.build()), payload.toString());
+        HttpResponse response = this.hcpConfig.executeWithCsrfToken(request);
 
         int statusCode = response.getStatusLine().getStatusCode();
         if( statusCode == 200 ) {
@@ -203,9 +351,7 @@ public class BudgetHcpOutput
         JsonArray budgets = new JsonArray();
         for( String tagName : entries.keySet() ) {
             // create the tag if it doesn't exist
-            validateTagExistence(tagGroupName, tagName);
-
-            long tagId = this.tagNameIds.get(tagGroupName.toLowerCase()).get(tagName.toLowerCase());
+            long tagId = validateTagExistence(tagGroupName, tagName);
             for( BudgetEntry entry : entries.get(tagName) ) {
                 JsonObject budget = new JsonObject();
                 budget.addProperty("id", tagId);
@@ -222,12 +368,10 @@ public class BudgetHcpOutput
         }
         payload.add("budgets", budgets);
 
-        long tagGroupId = this.tagGroupIds.get(tagGroupName.toLowerCase());
+        long tagGroupId = this.tagIds.getTagGroupId(tagGroupName);
         URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/budget/dimension/" + tagGroupId);
-        Request request = Request.Put(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payload.toString(), ContentType.APPLICATION_JSON);
-        HttpResponse response = this.hcpConfig.withOptionalProxy(request).execute().returnResponse();
+        Request request = this.transport.withJsonBody(Request.Put(uriBuilder.build()), payload.toString());
+        HttpResponse response = this.hcpConfig.executeWithCsrfToken(request);
 
         int statusCode = response.getStatusLine().getStatusCode();
         if( statusCode == 200 ) {
@@ -245,41 +389,40 @@ public class BudgetHcpOutput
         }
     }
 
-    private void validateTagExistence( String tagGroupName, String tagName )
+    /**
+     * Creates the tag and its tag group if they don't exist yet. Usually all tags have been created
+     * in bulk before. Synchronized, so that parallel uploads of different users can't create the same tag twice.
+     *
+     * @return the id of the tag
+     */
+    private synchronized long validateTagExistence( String tagGroupName, String tagName )
         throws URISyntaxException, IOException, RoleNotFoundException, ParseException
     {
         // creating the new tag group, will be empty with no related values
-        if( !this.tagGroupIds.containsKey(tagGroupName.toLowerCase()) ) {
-            long tagGroupID = createTagGroup(tagGroupName);
-            this.tagGroupIds.put(tagGroupName.toLowerCase(), tagGroupID);
-            this.tagNameIds.put(tagGroupName.toLowerCase(), new HashMap<String, Long>());
+        if( this.tagIds.getTagGroupId(tagGroupName) == null ) {
+            createTagGroups(Collections.singletonList(tagGroupName));
         }
 
         // creating the new tag
-        if( !this.tagNameIds.get(tagGroupName.toLowerCase()).containsKey(tagName.toLowerCase()) ) {
-            long tagID = createTag(tagGroupName, tagName);
-
-            Map<String, Long> groupTagsMap = this.tagNameIds.get(tagGroupName.toLowerCase());
-            groupTagsMap.put(tagName.toLowerCase(), tagID);
-            this.tagNameIds.put(tagGroupName.toLowerCase(), groupTagsMap);
+        if( this.tagIds.getTagId(tagGroupName, tagName) == null ) {
+            createTags(Collections.singletonList(new String[] { tagGroupName, tagName }));
+            saveTagCache();
         }
+        return this.tagIds.getTagId(tagGroupName, tagName);
     }
 
     /**
-     * creates a new tag on HCP and its tag group (dimension) if required
+     * creates new tags on HCP and stores their IDs, their tag groups (dimensions) must exist
      *
-     * @param tagGroupName
-     * @param tagName
-     * @return tagID
+     * @param tags list of [ tagGroupName , tagName ]
      * @throws URISyntaxException
      * @throws IOException
-     * @throws RoleNotFoundException
      * @throws ParseException
      */
-    private long createTag( String tagGroupName, String tagName )
-        throws URISyntaxException, IOException, RoleNotFoundException, ParseException
+    private void createTags( List<String[]> tags )
+        throws URISyntaxException, IOException, ParseException
     {
-        logger.info("creating the tag " + tagName + " that belongs to group " + tagGroupName + " ...");
+        logger.info("creating " + tags.size() + " tag(s) ...");
 
         // example:
         // {
@@ -291,45 +434,65 @@ public class BudgetHcpOutput
         //    ]
         // }
 
-        JsonObject tagJson = new JsonObject();
-        tagJson.addProperty("dimensionName", tagGroupName);
-        tagJson.addProperty("name", tagName);
         JsonArray dimensionValuesArray = new JsonArray();
-        dimensionValuesArray.add(tagJson);
+        for( String[] tag : tags ) {
+            JsonObject tagJson = new JsonObject();
+            tagJson.addProperty("dimensionName", tag[0]);
+            tagJson.addProperty("name", tag[1]);
+            dimensionValuesArray.add(tagJson);
+        }
         JsonObject payload = new JsonObject();
         payload.add("dimensionValues", dimensionValuesArray);
 
-        logger.info("payload of tag creation " + payload);
+        logger.debug("payload of tag creation " + payload);
 
         URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/tagging/values/");
-        Request request = Request.Put(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payload.toString(), ContentType.APPLICATION_JSON);
-        Response response = this.hcpConfig.withOptionalProxy(request).execute();
-        String responseAsString = response.returnContent().toString();
+        Request request = this.transport.withJsonBody(Request.Put(uriBuilder.build()), payload.toString());
+        HttpResponse response = this.hcpConfig.executeWithCsrfToken(request);
+        String responseAsString = getContentFromResponse(response);
 
+        // The IDs are matched by tag group and tag name, the order of the response is not guaranteed. Like in
+        // TagIdCache the names are case-insensitive, HCP may answer with the casing of an existing tag group.
         JSONParser parser = new JSONParser();
         JSONObject propertyMap = (JSONObject) parser.parse(responseAsString);
         JSONArray responseDimensionValues = (JSONArray) propertyMap.get("dimensionValues");
-        JSONObject createdDimensionValue = (JSONObject) responseDimensionValues.get(0);
-
-        return (long) createdDimensionValue.get("id");
+        if( responseDimensionValues == null ) {
+            throw new IOException("Expected the created tag(s), but got: " + responseAsString);
+        }
+        Map<String, Long> createdTagIds = new HashMap<>();
+        for( Object createdDimensionValueObject : responseDimensionValues ) {
+            JSONObject createdDimensionValue = (JSONObject) createdDimensionValueObject;
+            String dimensionName = (String) createdDimensionValue.get("dimensionName");
+            String name = (String) createdDimensionValue.get("name");
+            if( dimensionName != null && name != null ) {
+                createdTagIds.put(dimensionName.toLowerCase() + "/" + name.toLowerCase(),
+                    (Long) createdDimensionValue.get("id"));
+            }
+        }
+        for( String[] tag : tags ) {
+            Long tagId = createdTagIds.get(tag[0].toLowerCase() + "/" + tag[1].toLowerCase());
+            if( tagId == null ) {
+                throw new IOException(String.format("Tag %s of tag group %s is missing in the response: %s",
+                    tag[1],
+                    tag[0],
+                    responseAsString));
+            }
+            this.tagIds.putTag(tag[0], tag[1], tagId);
+        }
     }
 
     /**
-     * creates a tag group (dimension) on realspend API, with empty dimension values
+     * creates tag groups (dimensions) on realspend API, with empty dimension values, and stores their IDs
      *
-     * @param tagGroupName
-     * @return the id of the created dimension
+     * @param tagGroupNames
      * @throws URISyntaxException
      * @throws IOException
-     * @throws RoleNotFoundException
      * @throws ParseException
      */
-    private long createTagGroup( String tagGroupName )
-        throws URISyntaxException, IOException, RoleNotFoundException, ParseException
+    private void createTagGroups( List<String> tagGroupNames )
+        throws URISyntaxException, IOException, ParseException
     {
-        logger.info("creating the new tag group (dimension) " + tagGroupName + " ...");
+        logger.info("creating the new tag group(s) (dimensions) " + tagGroupNames + " ...");
         // example:
         // {
         //   "dimensions": [
@@ -339,26 +502,44 @@ public class BudgetHcpOutput
         //   ]
         // }
 
-        JsonObject tagGroupJson = new JsonObject();
-        tagGroupJson.addProperty("name", tagGroupName);
         JsonArray dimensionsArray = new JsonArray();
-        dimensionsArray.add(tagGroupJson);
+        for( String tagGroupName : tagGroupNames ) {
+            JsonObject tagGroupJson = new JsonObject();
+            tagGroupJson.addProperty("name", tagGroupName);
+            dimensionsArray.add(tagGroupJson);
+        }
         JsonObject payload = new JsonObject();
         payload.add("dimensions", dimensionsArray);
 
         URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/tagging/dimension/");
-        Request request = Request.Put(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payload.toString(), ContentType.APPLICATION_JSON);
-        Response response = this.hcpConfig.withOptionalProxy(request).execute();
-        String responseAsString = response.returnContent().toString();
+        Request request = this.transport.withJsonBody(Request.Put(uriBuilder.build()), payload.toString());
+        HttpResponse response = this.hcpConfig.executeWithCsrfToken(request);
+        String responseAsString = getContentFromResponse(response);
 
+        // The IDs are matched case-insensitively by name, the order of the response is not guaranteed
         JSONParser parser = new JSONParser();
         JSONObject propertyMap = (JSONObject) parser.parse(responseAsString);
         JSONArray responseDimensions = (JSONArray) propertyMap.get("dimensions");
-        JSONObject createdDimension = (JSONObject) responseDimensions.get(0);
-
-        return (long) createdDimension.get("id");
+        if( responseDimensions == null ) {
+            throw new IOException("Expected the created tag group(s), but got: " + responseAsString);
+        }
+        Map<String, Long> createdTagGroupIds = new HashMap<>();
+        for( Object createdDimensionObject : responseDimensions ) {
+            JSONObject createdDimension = (JSONObject) createdDimensionObject;
+            String name = (String) createdDimension.get("name");
+            if( name != null ) {
+                createdTagGroupIds.put(name.toLowerCase(), (Long) createdDimension.get("id"));
+            }
+        }
+        for( String tagGroupName : tagGroupNames ) {
+            Long tagGroupId = createdTagGroupIds.get(tagGroupName.toLowerCase());
+            if( tagGroupId == null ) {
+                throw new IOException(String.format("Tag group %s is missing in the response: %s",
+                    tagGroupName,
+                    responseAsString));
+            }
+            this.tagIds.putTagGroup(tagGroupName, tagGroupId);
+        }
     }
 
     private void putMasterDataBudgets( String endpoint, String user, Map<String, List<BudgetEntry>> entries )
@@ -385,10 +566,8 @@ public class BudgetHcpOutput
         payload.add("budgets", budgets);
 
         URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/budget/" + endpoint);
-        Request request = Request.Put(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payload.toString(), ContentType.APPLICATION_JSON);
-        HttpResponse response = this.hcpConfig.withOptionalProxy(request).execute().returnResponse();
+        Request request = this.transport.withJsonBody(Request.Put(uriBuilder.build()), payload.toString());
+        HttpResponse response = this.hcpConfig.executeWithCsrfToken(request);
 
         int statusCode = response.getStatusLine().getStatusCode();
         if( statusCode == 200 ) {
@@ -410,4 +589,16 @@ public class BudgetHcpOutput
         }
     }
 
+    /**
+     * Returns the body of a successful response, fails like {@code Response.returnContent()} otherwise
+     */
+    private static String getContentFromResponse( HttpResponse response )
+        throws IOException
+    {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if( statusCode >= 300 ) {
+            throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+        }
+        return getBodyFromResponse(response);
+    }
 }
@@ -0,0 +1,158 @@
+package com.sap.expenseuploader.budgets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe lookup of the IDs of tag groups (dimensions) and tags (dimension values) in the realspend api.
+ * The IDs can be stored in a file, so that the next run doesn't need to download all tags again.
+ * <p>
+ * NOTE: all tag names and tag group names are compared case-insensitively, like the realspend api does.
+ */
+public class TagIdCache
+{
+    private static final Logger logger = LogManager.getLogger(TagIdCache.class);
+    private static final Gson GSON = new Gson();
+
+    /**
+     * [ KEY , VALUE ] = [ tagGroupName , tagGroupID ]
+     */
+    private ConcurrentMap<String, Long> tagGroupIds = new ConcurrentHashMap<>();
+
+    /**
+     * [ KEY , VALUE ] = [ tagGroupName , [ tagName , tagID ] ]
+     */
+    private ConcurrentMap<String, ConcurrentMap<String, Long>> tagIds = new ConcurrentHashMap<>();
+
+    // HCP account the IDs belong to
+    private String owner;
+    // ETag of the tag list the IDs were read from
+    private String etag;
+    // When the IDs were last read or validated
+    private long validatedAt;
+
+    public TagIdCache( String owner )
+    {
+        this.owner = owner;
+    }
+
+    public void putTagGroup( String tagGroupName, long tagGroupId )
+    {
+        String key = tagGroupName.toLowerCase();
+        this.tagIds.putIfAbsent(key, new ConcurrentHashMap<String, Long>());
+        this.tagGroupIds.put(key, tagGroupId);
+    }
+
+    /**
+     * Stores the ID of a tag, its tag group must already be known
+     */
+    public void putTag( String tagGroupName, String tagName, long tagId )
+    {
+        this.tagIds.get(tagGroupName.toLowerCase()).put(tagName.toLowerCase(), tagId);
+    }
+
+    /**
+     * @return the ID or null if the tag group is unknown
+     */
+    public Long getTagGroupId( String tagGroupName )
+    {
+        return this.tagGroupIds.get(tagGroupName.toLowerCase());
+    }
+
+    /**
+     * @return the ID or null if the tag is unknown
+     */
+    public Long getTagId( String tagGroupName, String tagName )
+    {
+        Map<String, Long> tags = this.tagIds.get(tagGroupName.toLowerCase());
+        return tags == null ? null : tags.get(tagName.toLowerCase());
+    }
+
+    public int size()
+    {
+        int size = this.tagGroupIds.size();
+        for( Map<String, Long> tags : this.tagIds.values() ) {
+            size += tags.size();
+        }
+        return size;
+    }
+
+    public void clear()
+    {
+        this.tagGroupIds.clear();
+        this.tagIds.clear();
+    }
+
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    public String getEtag()
+    {
+        return etag;
+    }
+
+    /**
+     * Marks the IDs as up to date with the tag list of the given ETag
+     */
+    public void setValidated( String etag )
+    {
+        this.etag = etag;
+        this.validatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return milliseconds since the IDs were last read or validated
+     */
+    public long getAge()
+    {
+        return System.currentTimeMillis() - this.validatedAt;
+    }
+
+    /**
+     * Writes the cache to the file. The file is replaced at once, so a crash can't leave a partial file behind.
+     */
+    public synchronized void save( File file )
+        throws IOException
+    {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try( Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8) ) {
+            GSON.toJson(this, writer);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Stored " + size() + " tag ID(s) in " + file.getAbsolutePath());
+    }
+
+    /**
+     * @return the cache stored in the file, or null if there is no usable cache
+     */
+    public static TagIdCache load( File file )
+    {
+        if( !file.exists() ) {
+            return null;
+        }
+        try( Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8) ) {
+            TagIdCache cache = GSON.fromJson(reader, TagIdCache.class);
+            if( cache == null || cache.tagGroupIds == null || cache.tagIds == null ) {
+                return null;
+            }
+            return cache;
+        }
+        catch( IOException | JsonParseException e ) {
+            logger.warn("Ignoring unreadable tag cache " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+}
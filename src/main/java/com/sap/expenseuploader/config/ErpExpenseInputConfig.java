@@ -3,14 +3,15 @@ package com.sap.expenseuploader.config;
 import com.sap.conn.jco.JCoDestination;
 import com.sap.conn.jco.JCoDestinationManager;
 import com.sap.conn.jco.JCoException;
+import com.sap.expenseuploader.DateCodec;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class ErpExpenseInputConfig
 {
@@ -22,6 +23,9 @@ public class ErpExpenseInputConfig
     private String fromTime;
     private String toTime;
     private String period;
+    private int sliceDays = 0; // 0 means the whole date range at once
+    private int sliceCostCenters = 0; // 0 means all cost centers at once
+    private int threads = 1;
 
     public ErpExpenseInputConfig()
     {
@@ -39,6 +43,11 @@ public class ErpExpenseInputConfig
         this.period = period;
     }
 
+    public String getSystemName()
+    {
+        return this.systemName;
+    }
+
     public String getControllingArea()
     {
         return this.controllingArea;
@@ -49,14 +58,16 @@ public class ErpExpenseInputConfig
         return this.fromTime;
     }
 
+    public void setFromTime( String fromTime )
+    {
+        this.fromTime = fromTime;
+    }
+
     public String getToTime()
     {
         if( this.toTime == null ) {
             // If not set, set to yesterday
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.DATE, -1);
-            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-            this.toTime = dateFormat.format(cal.getTime());
+            this.toTime = DateCodec.format(DateCodec.today() - 1);
             logger.info("Setting to-time to " + this.toTime);
         }
         return this.toTime;
@@ -72,12 +83,86 @@ public class ErpExpenseInputConfig
         return this.period;
     }
 
+    public void setSliceDays( int sliceDays )
+    {
+        this.sliceDays = sliceDays;
+    }
+
+    public void setSliceCostCenters( int sliceCostCenters )
+    {
+        this.sliceCostCenters = sliceCostCenters;
+    }
+
+    /**
+     * Number of ERP extractions which run in parallel, the JCo destination needs a pool of at least this size
+     */
+    public int getThreads()
+    {
+        return this.threads;
+    }
+
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Splits the posting date range from-time to to-time into consecutive windows of at most slice-days days.
+     * Without slice-days the range is returned as one window. Dates are given as YYYYMMDD on the command line,
+     * the default to-time is YYYY-MM-DD.
+     *
+     * @return pairs of lower and higher posting date
+     * @throws java.text.ParseException
+     */
+    public List<String[]> getPostingDateWindows()
+        throws java.text.ParseException
+    {
+        if( this.sliceDays <= 0 ) {
+            return Collections.singletonList(new String[] { getFromTime(), getToTime() });
+        }
+
+        int from = DateCodec.parseErpDate(getFromTime());
+        int to = DateCodec.parseErpDate(getToTime());
+
+        List<String[]> result = new ArrayList<>();
+        for( int low = from; low <= to; low += this.sliceDays ) {
+            int high = Math.min(low + this.sliceDays - 1, to);
+            result.add(new String[] { DateCodec.formatErpDate(low), DateCodec.formatErpDate(high) });
+        }
+        return result;
+    }
+
+    /**
+     * Splits the given cost centers into groups of at most slice-cost-centers cost centers.
+     * Without slice-cost-centers all cost centers are returned as one group.
+     */
+    public List<List<String>> getCostCenterGroups( List<String> costCenters )
+    {
+        if( this.sliceCostCenters <= 0 || costCenters.size() <= this.sliceCostCenters ) {
+            return Collections.singletonList(costCenters);
+        }
+        List<List<String>> result = new ArrayList<>();
+        for( int i = 0; i < costCenters.size(); i += this.sliceCostCenters ) {
+            result.add(costCenters.subList(i, Math.min(i + this.sliceCostCenters, costCenters.size())));
+        }
+        return result;
+    }
+
     public JCoDestination getJcoDestination()
         throws JCoException
     {
         return JCoDestinationManager.getDestination(this.systemName);
     }
 
+    /**
+     * Opens a stateful session with the ERP, which has to be closed after use
+     */
+    public ErpSession openSession()
+        throws JCoException
+    {
+        return new ErpSession(getJcoDestination());
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,32 @@
+package com.sap.expenseuploader.config;
+
+import com.sap.conn.jco.JCoContext;
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoException;
+
+/**
+ * A stateful JCo session, all BAPI calls of the current thread between opening and closing use the same
+ * connection to the ERP. Use it with try-with-resources, so that the connection is always given back.
+ */
+public class ErpSession implements AutoCloseable
+{
+    private final JCoDestination destination;
+
+    public ErpSession( JCoDestination destination )
+    {
+        this.destination = destination;
+        JCoContext.begin(destination);
+    }
+
+    public JCoDestination getDestination()
+    {
+        return destination;
+    }
+
+    @Override
+    public void close()
+        throws JCoException
+    {
+        JCoContext.end(this.destination);
+    }
+}
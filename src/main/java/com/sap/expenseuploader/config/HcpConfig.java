@@ -1,30 +1,65 @@
 package com.sap.expenseuploader.config;
 
+import com.sap.expenseuploader.hcp.CircuitBreaker;
+import com.sap.expenseuploader.hcp.HcpTransport;
+import com.sap.expenseuploader.hcp.RateLimiter;
+import com.sap.expenseuploader.hcp.RequestNotSentException;
+import com.sap.expenseuploader.hcp.RetryPolicy;
+import com.sap.expenseuploader.metrics.Metrics;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HcpConfig
 {
     private static final Logger logger = LogManager.getLogger(HcpConfig.class);
 
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+
     // Command line parameters
     private String hcpUrl;
     private String hcpUser;
     private String hcpPass;
     private String proxy; // Can be null
     private boolean resume;
+    private int uploadThreads = DEFAULT_UPLOAD_THREADS;
+    private int maxConnectionsPerHost = 0; // 0 means same as uploadThreads
+    private int connectTimeoutSeconds = HcpTransport.DEFAULT_CONNECT_TIMEOUT_SECONDS;
+    private int socketTimeoutSeconds = HcpTransport.DEFAULT_SOCKET_TIMEOUT_SECONDS;
+    private int keepAliveSeconds = HcpTransport.DEFAULT_KEEP_ALIVE_SECONDS;
+    private boolean compressRequests = false;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private double maxRequestsPerSecond = 0; // 0 means unlimited
+    private long maxBytesPerSecond = 0; // 0 means unlimited
+    private File rateLimitFile; // Can be null
+
+    // Shared by all upload threads, pauses them while HCP is overloaded
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final AtomicInteger retries = new AtomicInteger();
 
-    // CSRF token
-    private String csrfToken;
+    // Shared HTTP transport, used for all requests to HCP
+    private HcpTransport transport;
+
+    // CSRF token, cached for all requests and bound to the session in the cookie store
+    private volatile String csrfToken;
+    private final AtomicInteger csrfTokenFetches = new AtomicInteger();
+    private final CookieStore cookieStore = new BasicCookieStore();
 
     public HcpConfig( String hcpUrl, String hcpUser, String hcpPass, String proxy, boolean resume )
     {
@@ -43,7 +78,7 @@ public class HcpConfig
         return this.hcpUrl;
     }
 
-    public String getHcpUser()
+    public synchronized String getHcpUser()
     {
         if( this.hcpUser == null ) {
             // If this was not provided, show prompt
@@ -56,7 +91,7 @@ public class HcpConfig
         return this.hcpUser;
     }
 
-    public String getHcpPass()
+    public synchronized String getHcpPass()
     {
         if( this.hcpPass == null ) {
             // If this was not provided, show prompt
@@ -75,22 +110,274 @@ public class HcpConfig
         return resume;
     }
 
-    public Request withOptionalProxy( Request request )
+    public int getUploadThreads()
+    {
+        return this.uploadThreads;
+    }
+
+    public void setUploadThreads( int uploadThreads )
+    {
+        if( uploadThreads < 1 ) {
+            throw new IllegalArgumentException("Number of upload threads must be at least 1");
+        }
+        this.uploadThreads = uploadThreads;
+    }
+
+    public int getMaxConnectionsPerHost()
+    {
+        return this.maxConnectionsPerHost > 0 ? this.maxConnectionsPerHost : this.uploadThreads;
+    }
+
+    public void setMaxConnectionsPerHost( int maxConnectionsPerHost )
+    {
+        if( maxConnectionsPerHost < 1 ) {
+            throw new IllegalArgumentException("Number of connections per host must be at least 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectTimeoutSeconds( int connectTimeoutSeconds )
+    {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    public void setSocketTimeoutSeconds( int socketTimeoutSeconds )
+    {
+        this.socketTimeoutSeconds = socketTimeoutSeconds;
+    }
+
+    public void setKeepAliveSeconds( int keepAliveSeconds )
+    {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public void setCompressRequests( boolean compressRequests )
+    {
+        this.compressRequests = compressRequests;
+    }
+
+    /**
+     * Limits the load on HCP, see {@link RateLimiter}
+     *
+     * @param maxRequestsPerSecond 0 means unlimited
+     * @param maxBytesPerSecond 0 means unlimited
+     * @param rateLimitFile file to share the limits with other processes, or null
+     */
+    public void setRateLimit( double maxRequestsPerSecond, long maxBytesPerSecond, File rateLimitFile )
+    {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.rateLimitFile = rateLimitFile;
+    }
+
+    public void setMaxRetries( int maxRetries )
+    {
+        this.retryPolicy = new RetryPolicy(maxRetries,
+            RetryPolicy.DEFAULT_BASE_DELAY_MILLIS,
+            RetryPolicy.DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Returns how often requests were sent again
+     */
+    public int getRetryCount()
+    {
+        return this.retries.get();
+    }
+
+    /**
+     * Returns the transport shared by all HCP outputs, it is created with the current settings on first use.
+     */
+    public synchronized HcpTransport getTransport()
+    {
+        if( this.transport == null ) {
+            RateLimiter rateLimiter = null;
+            if( this.maxRequestsPerSecond > 0 || this.maxBytesPerSecond > 0 ) {
+                try {
+                    rateLimiter = new RateLimiter(this.maxRequestsPerSecond, this.maxBytesPerSecond, this.rateLimitFile);
+                }
+                catch( IOException e ) {
+                    throw new RuntimeException("Failed to open the rate limit file " + this.rateLimitFile, e);
+                }
+            }
+            this.transport = new HcpTransport(getMaxConnectionsPerHost(),
+                this.connectTimeoutSeconds,
+                this.socketTimeoutSeconds,
+                this.keepAliveSeconds,
+                this.proxy,
+                this.compressRequests,
+                this.cookieStore,
+                rateLimiter);
+        }
+        return this.transport;
+    }
+
+    public synchronized void setTransport( HcpTransport transport )
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * Executes the request via the shared transport, which is safe to be used by
+     * multiple upload threads at once.
+     */
+    public Response execute( Request request )
+        throws IOException
+    {
+        return getTransport().execute(request);
+    }
+
+    /**
+     * Executes an idempotent request (GET or PUT). If HCP is temporarily unavailable, the request is retried.
+     */
+    public HttpResponse executeWithRetry( Request request )
+        throws IOException, URISyntaxException
+    {
+        return executeWithRetry(request, false, true);
+    }
+
+    /**
+     * Executes an idempotent modifying request (PUT) with the cached CSRF token. If the backend rejects the token,
+     * a new token is fetched and the request is sent once more. If HCP is temporarily unavailable, the request
+     * is retried.
+     */
+    public HttpResponse executeWithCsrfToken( Request request )
+        throws IOException, URISyntaxException
+    {
+        return executeWithRetry(request, true, true);
+    }
+
+    /**
+     * Executes a POST request with the cached CSRF token like {@link #executeWithCsrfToken(Request)}.
+     * HCP doesn't recognize a POST which is sent twice, so it is only retried if HCP has certainly not processed
+     * it, see {@link RetryPolicy#isRetryable(IOException, boolean)}.
+     */
+    public HttpResponse executePostWithCsrfToken( Request request )
+        throws IOException, URISyntaxException
+    {
+        return executeWithRetry(request, true, false);
+    }
+
+    /**
+     * Sends the request until it gets a response which is not caused by an overload of HCP, or the retries
+     * are used up. All threads wait while the circuit breaker is open.
+     */
+    private HttpResponse executeWithRetry( Request request, boolean withCsrfToken, boolean idempotent )
+        throws IOException, URISyntaxException
+    {
+        for( int retry = 1; ; retry++ ) {
+            try {
+                this.circuitBreaker.awaitPermission();
+            }
+            catch( InterruptedException e ) {
+                throw new InterruptedIOException("Interrupted while HCP requests are paused");
+            }
+
+            HttpResponse response;
+            try {
+                response = withCsrfToken ? executeOnceWithCsrfToken(request) : execute(request).returnResponse();
+            }
+            catch( IOException e ) {
+                this.circuitBreaker.onFailure(0);
+                if( !RetryPolicy.isRetryable(e, idempotent) || retry > this.retryPolicy.getMaxRetries() ) {
+                    throw e;
+                }
+                waitForRetry(retry, null, e.toString());
+                continue;
+            }
+
+            int statusCode = response.getStatusLine().getStatusCode();
+            if( !RetryPolicy.isRetryableStatus(statusCode) ) {
+                this.circuitBreaker.onSuccess();
+                return response;
+            }
+            this.circuitBreaker.onFailure(RetryPolicy.getRetryAfterMillis(response));
+            if( !RetryPolicy.isRetryableStatus(statusCode, idempotent) || retry > this.retryPolicy.getMaxRetries() ) {
+                return response;
+            }
+            EntityUtils.consumeQuietly(response.getEntity());
+            waitForRetry(retry, response, "HTTP " + statusCode);
+        }
+    }
+
+    private void waitForRetry( int retry, HttpResponse response, String reason )
+        throws InterruptedIOException
+    {
+        long delay = this.retryPolicy.getDelayMillis(retry, response);
+        logger.warn(String.format("Request to HCP failed (%s), retry %s of %s in %.1f second(s)",
+            reason,
+            retry,
+            this.retryPolicy.getMaxRetries(),
+            delay / 1000.0));
+        this.retries.incrementAndGet();
+        Metrics.counter("http_retries_total").increment();
+        try {
+            Thread.sleep(delay);
+        }
+        catch( InterruptedException e ) {
+            throw new InterruptedIOException("Interrupted while waiting for a retry");
+        }
+    }
+
+    private HttpResponse executeOnceWithCsrfToken( Request request )
+        throws IOException, URISyntaxException
     {
-        if( this.proxy != null && !this.proxy.isEmpty() ) {
-            request = request.viaProxy(this.proxy);
+        String token = getCsrfToken();
+        HttpResponse response = execute(request.setHeader("x-csrf-token", token)).returnResponse();
+        if( isCsrfTokenRejected(response) ) {
+            logger.debug("CSRF token " + token + " was rejected, fetching a new one");
+            invalidateCsrfToken(token);
+            response = execute(request.setHeader("x-csrf-token", getCsrfToken())).returnResponse();
         }
-        return request;
+        return response;
     }
 
     /**
-     * Fetches a CSRF token from RealSpend and authenticates.
+     * Returns the cached CSRF token, it is fetched from RealSpend if there is none yet.
      */
     public String getCsrfToken()
         throws IOException, URISyntaxException
     {
-        // Currently the caching is disabled, the token is refetched every time
-        return fetchCsrfToken();
+        String token = this.csrfToken;
+        if( token != null ) {
+            return token;
+        }
+        synchronized( this ) {
+            // Another thread might have fetched the token in the meantime
+            if( this.csrfToken == null ) {
+                this.csrfToken = fetchCsrfToken();
+            }
+            return this.csrfToken;
+        }
+    }
+
+    /**
+     * Returns how often a CSRF token was fetched from RealSpend
+     */
+    public int getCsrfTokenFetchCount()
+    {
+        return this.csrfTokenFetches.get();
+    }
+
+    private synchronized void invalidateCsrfToken( String token )
+    {
+        // Only drop the token if no other thread has replaced it already
+        if( token.equals(this.csrfToken) ) {
+            this.csrfToken = null;
+        }
+    }
+
+    private static boolean isCsrfTokenRejected( HttpResponse response )
+        throws IOException
+    {
+        if( response.getStatusLine().getStatusCode() != 403 ) {
+            return false;
+        }
+        Header header = response.getFirstHeader("x-csrf-token");
+        if( header != null && "required".equalsIgnoreCase(header.getValue()) ) {
+            return true;
+        }
+        return response.getEntity() != null && getBodyFromResponse(response).contains("CSRF token validation failed");
     }
 
     private String fetchCsrfToken()
@@ -100,7 +387,21 @@ public class HcpConfig
         Request request = Request.Get(uriBuilder.build())
             .addHeader("Authorization", "Basic " + buildAuthString())
             .addHeader("x-csrf-token", "fetch");
-        HttpResponse response = withOptionalProxy(request).execute().returnResponse();
+        // Not retried here, the request which needs the token is retried as a whole. It hasn't been sent yet,
+        // so a failure here doesn't prevent the retry of a POST.
+        HttpResponse response;
+        try {
+            response = execute(request).returnResponse();
+        }
+        catch( InterruptedIOException e ) {
+            if( !(e instanceof SocketTimeoutException) && !(e instanceof ConnectTimeoutException) ) {
+                throw e;
+            }
+            throw new RequestNotSentException("Failed to fetch CSRF token: " + e, e);
+        }
+        catch( IOException e ) {
+            throw new RequestNotSentException("Failed to fetch CSRF token: " + e, e);
+        }
         Header responseCsrfHeader = response.getFirstHeader("x-csrf-token");
         int statusCode = response.getStatusLine().getStatusCode();
         if( statusCode != 200 ) {
@@ -108,10 +409,14 @@ public class HcpConfig
             logger.error("URL was: " + uriBuilder.build());
             logger.error("Error is: " + getBodyFromResponse(response));
         }
+        if( responseCsrfHeader == null && RetryPolicy.isRetryableStatus(statusCode) ) {
+            throw new RequestNotSentException("Failed to fetch CSRF token, HCP is not available.");
+        }
         if( responseCsrfHeader == null ) {
             throw new RuntimeException("Failed to fetch CSRF token.");
         }
         String result = responseCsrfHeader.getValue();
+        this.csrfTokenFetches.incrementAndGet();
         logger.debug("Fetched CSRF token " + result);
         return result;
     }
@@ -71,6 +71,25 @@ public abstract class BudgetConfig
         return result;
     }
 
+    /**
+     * Returns all tag groups and their tags which have a budget of any user
+     *
+     * @return tag group -> tag names, sorted by name
+     */
+    public Map<String, Set<String>> getAllTags()
+    {
+        Map<String, Set<String>> result = new TreeMap<>();
+        for( Map<String, Map<String, List<BudgetEntry>>> tagGroups : userTagBudgets.values() ) {
+            for( Map.Entry<String, Map<String, List<BudgetEntry>>> tagGroup : tagGroups.entrySet() ) {
+                if( !result.containsKey(tagGroup.getKey()) ) {
+                    result.put(tagGroup.getKey(), new TreeSet<String>());
+                }
+                result.get(tagGroup.getKey()).addAll(tagGroup.getValue().keySet());
+            }
+        }
+        return result;
+    }
+
     @Override
     public String toString()
     {
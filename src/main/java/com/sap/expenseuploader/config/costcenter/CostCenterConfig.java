@@ -1,5 +1,7 @@
 package com.sap.expenseuploader.config.costcenter;
 
+import com.sap.expenseuploader.Helper;
+
 import java.util.*;
 
 public abstract class CostCenterConfig
@@ -10,6 +12,9 @@ public abstract class CostCenterConfig
     // Map from cost centers to list of costCenterUsers
     protected Map<String, List<String>> costCenterUsers = new HashMap<>();
 
+    // Map from normalized cost centers to unique users, built on first use
+    private Map<String, List<String>> normalizedCostCenterUsers;
+
     /**
      * Returns the sorted list of all unique cost centers
      */
@@ -46,6 +51,37 @@ public abstract class CostCenterConfig
         return costCenterUsers.get(costCenter);
     }
 
+    /**
+     * Returns all users of each cost center, keyed by the normalized cost center
+     * (see {@link #normalizeCostCenter(String)}). Each user appears at most once per cost center.
+     */
+    public synchronized Map<String, List<String>> getNormalizedCostCenterUsers()
+    {
+        if( normalizedCostCenterUsers == null ) {
+            Map<String, Set<String>> uniqueUsers = new HashMap<>();
+            for( Map.Entry<String, List<String>> entry : costCenterUsers.entrySet() ) {
+                String costCenter = normalizeCostCenter(entry.getKey());
+                if( !uniqueUsers.containsKey(costCenter) ) {
+                    uniqueUsers.put(costCenter, new LinkedHashSet<String>());
+                }
+                uniqueUsers.get(costCenter).addAll(entry.getValue());
+            }
+            normalizedCostCenterUsers = new HashMap<>();
+            for( Map.Entry<String, Set<String>> entry : uniqueUsers.entrySet() ) {
+                normalizedCostCenterUsers.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        return normalizedCostCenterUsers;
+    }
+
+    /**
+     * Cost centers are compared without leading zeros and case-insensitive
+     */
+    public static String normalizeCostCenter( String costCenter )
+    {
+        return Helper.stripLeadingZeros(costCenter).toLowerCase(Locale.ROOT);
+    }
+
     @Override
     public String toString()
     {
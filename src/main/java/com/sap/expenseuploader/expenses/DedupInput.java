@@ -0,0 +1,79 @@
+package com.sap.expenseuploader.expenses;
+
+import com.sap.expenseuploader.LongHashSet;
+import com.sap.expenseuploader.expenses.input.ExpenseInput;
+import com.sap.expenseuploader.model.Expense;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes on each expense of an input only once. Expenses are duplicates if all of their uploaded fields are equal,
+ * e.g. because input files or ERP slices overlap. Only the 64 bit fingerprint of each expense is kept in memory.
+ */
+public class DedupInput implements ExpenseInput
+{
+    private static final Logger logger = LogManager.getLogger(DedupInput.class);
+
+    private final ExpenseInput input;
+    private long duplicates = 0;
+
+    public DedupInput( ExpenseInput input )
+    {
+        this.input = input;
+    }
+
+    @Override
+    public List<Expense> getExpenses()
+        throws IOException, ParseException
+    {
+        final List<Expense> expenses = new ArrayList<>();
+        readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                expenses.add(expense);
+            }
+        });
+        return expenses;
+    }
+
+    @Override
+    public void readExpenses( final ExpenseSink sink )
+        throws IOException, ParseException
+    {
+        // The inputs pass on their expenses from one thread, so the set needs no synchronization
+        final LongHashSet fingerprints = new LongHashSet();
+        this.duplicates = 0;
+        this.input.readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                if( fingerprints.add(expense.getFingerprint()) ) {
+                    sink.put(expense);
+                    return;
+                }
+                duplicates++;
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Skipping duplicate expense: " + expense);
+                }
+            }
+        });
+        logger.info(String.format("Skipped %s duplicate expense(s) of %s", this.duplicates, fingerprints.size()
+            + this.duplicates));
+    }
+
+    /**
+     * @return the number of duplicates found by the last read
+     */
+    public long getDuplicates()
+    {
+        return this.duplicates;
+    }
+}
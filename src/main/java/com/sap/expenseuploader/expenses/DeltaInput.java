@@ -0,0 +1,87 @@
+package com.sap.expenseuploader.expenses;
+
+import com.sap.expenseuploader.config.costcenter.CostCenterConfig;
+import com.sap.expenseuploader.expenses.input.ExpenseInput;
+import com.sap.expenseuploader.model.Expense;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes on only the expenses of an input which are not in the delta store for all users of their cost center,
+ * i.e. which are new, have changed since they were uploaded or are still missing for one of the users. The HCP
+ * output skips the users which already have the expense.
+ */
+public class DeltaInput implements ExpenseInput
+{
+    private static final Logger logger = LogManager.getLogger(DeltaInput.class);
+
+    private final ExpenseInput input;
+    private final DeltaStore deltaStore;
+    private final CostCenterConfig costCenterConfig;
+
+    public DeltaInput( ExpenseInput input, DeltaStore deltaStore, CostCenterConfig costCenterConfig )
+    {
+        this.input = input;
+        this.deltaStore = deltaStore;
+        this.costCenterConfig = costCenterConfig;
+    }
+
+    @Override
+    public List<Expense> getExpenses()
+        throws IOException, ParseException
+    {
+        final List<Expense> expenses = new ArrayList<>();
+        readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                expenses.add(expense);
+            }
+        });
+        return expenses;
+    }
+
+    @Override
+    public void readExpenses( final ExpenseSink sink )
+        throws IOException, ParseException
+    {
+        final long[] skipped = { 0 };
+        final Map<String, List<String>> costCenterUsers = this.costCenterConfig.getNormalizedCostCenterUsers();
+        this.input.readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                List<String> users =
+                    costCenterUsers.get(CostCenterConfig.normalizeCostCenter(expense.getCostCenter()));
+                if( isUploadedToAllUsers(users, expense) ) {
+                    skipped[0]++;
+                } else {
+                    sink.put(expense);
+                }
+            }
+        });
+        logger.info("Skipped " + skipped[0] + " expense(s) which have been uploaded before");
+    }
+
+    private boolean isUploadedToAllUsers( List<String> users, Expense expense )
+    {
+        if( users == null ) {
+            // Not uploaded at all, let the output decide
+            return false;
+        }
+        for( String user : users ) {
+            if( !this.deltaStore.contains(user, expense) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
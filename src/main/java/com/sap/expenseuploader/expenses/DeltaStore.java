@@ -0,0 +1,195 @@
+package com.sap.expenseuploader.expenses;
+
+import com.sap.expenseuploader.DateCodec;
+import com.sap.expenseuploader.LongHashSet;
+import com.sap.expenseuploader.config.costcenter.CostCenterConfig;
+import com.sap.expenseuploader.model.Expense;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Remembers which expenses have been uploaded to HCP, so that later runs only upload new or changed line items.
+ * <p>
+ * For each controlling area and cost center the latest uploaded posting date (high-water mark) is stored, which
+ * allows to shorten the ERP extraction. Additionally the fingerprints of all uploaded line items are stored, to
+ * skip the line items which are extracted again. A line item of a cost center with several users is uploaded once
+ * per user, so the fingerprints are stored per user: if the batch of one user fails, the line item is still
+ * uploaded to this user in the next run.
+ */
+public class DeltaStore
+{
+    private static final Logger logger = LogManager.getLogger(DeltaStore.class);
+
+    // Postings can be entered with a posting date in the past, so some days before the high-water mark are read again
+    public static final int DEFAULT_LOOKBACK_DAYS = 7;
+
+    private static final int MAGIC = 0x45584453; // "EXDS"
+    private static final int VERSION = 2;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private final String controllingArea;
+
+    // controlling area/cost center -> yyyyMMdd
+    private final Map<String, String> highWaterMarks = new HashMap<>();
+    private final LongHashSet fingerprints;
+
+    private int recorded = 0;
+
+    private DeltaStore( File file, String controllingArea, int expectedSize )
+    {
+        this.file = file;
+        this.controllingArea = controllingArea;
+        this.fingerprints = new LongHashSet(expectedSize);
+    }
+
+    /**
+     * Reads the store from the file, or creates an empty store if the file doesn't exist yet
+     *
+     * @param file
+     * @param controllingArea the controlling area of this run
+     * @return
+     * @throws IOException
+     */
+    public static DeltaStore load( File file, String controllingArea )
+        throws IOException
+    {
+        if( !file.exists() ) {
+            logger.info("Delta store " + file.getAbsolutePath() + " doesn't exist yet, all expenses will be uploaded");
+            return new DeltaStore(file, controllingArea, 16);
+        }
+
+        try( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ) {
+            if( in.readInt() != MAGIC ) {
+                throw new IOException("File " + file.getAbsolutePath() + " is not a delta store");
+            }
+            if( in.readInt() != VERSION ) {
+                throw new IOException("Delta store " + file.getAbsolutePath()
+                    + " was written by an older version without the users of the expenses. Delete it to read all expenses again.");
+            }
+            int highWaterMarkCount = in.readInt();
+            Map<String, String> highWaterMarks = new HashMap<>();
+            for( int i = 0; i < highWaterMarkCount; i++ ) {
+                highWaterMarks.put(in.readUTF(), in.readUTF());
+            }
+            int fingerprintCount = in.readInt();
+            DeltaStore store = new DeltaStore(file, controllingArea, fingerprintCount);
+            store.highWaterMarks.putAll(highWaterMarks);
+            for( int i = 0; i < fingerprintCount; i++ ) {
+                store.fingerprints.add(in.readLong());
+            }
+            logger.info(String.format("Read %s uploaded expense(s) from delta store %s",
+                fingerprintCount,
+                file.getAbsolutePath()));
+            return store;
+        }
+    }
+
+    /**
+     * @return true if exactly this expense has been uploaded to the user before
+     */
+    public synchronized boolean contains( String user, Expense expense )
+    {
+        return this.fingerprints.contains(getFingerprint(user, expense));
+    }
+
+    /**
+     * Remembers expenses which have been uploaded successfully to the user
+     */
+    public synchronized void record( String user, Collection<Expense> expenses )
+    {
+        for( Expense expense : expenses ) {
+            if( !this.fingerprints.add(getFingerprint(user, expense)) ) {
+                continue;
+            }
+            this.recorded++;
+            String key = getKey(expense.getCostCenter());
+            String postingDate = DateCodec.formatErpDate(expense.getEpochDay());
+            String highWaterMark = this.highWaterMarks.get(key);
+            if( highWaterMark == null || highWaterMark.compareTo(postingDate) < 0 ) {
+                this.highWaterMarks.put(key, postingDate);
+            }
+        }
+    }
+
+    /**
+     * Returns the posting date from which on the given cost centers need to be read again. This is the
+     * oldest high-water mark of the cost centers minus the lookback days.
+     *
+     * @param costCenters
+     * @param lookbackDays
+     * @return the date as yyyyMMdd, or null if any of the cost centers has not been uploaded before
+     * @throws ParseException
+     */
+    public synchronized String getDeltaFromTime( List<String> costCenters, int lookbackDays )
+        throws ParseException
+    {
+        String oldest = null;
+        for( String costCenter : costCenters ) {
+            String highWaterMark = this.highWaterMarks.get(getKey(costCenter));
+            if( highWaterMark == null ) {
+                return null;
+            }
+            if( oldest == null || highWaterMark.compareTo(oldest) < 0 ) {
+                oldest = highWaterMark;
+            }
+        }
+        if( oldest == null ) {
+            return null;
+        }
+        return DateCodec.formatErpDate(DateCodec.parseErpDate(oldest) - lookbackDays);
+    }
+
+    /**
+     * Writes the store to its file. The file is replaced at once, so a crash can't leave a partial file behind.
+     */
+    public synchronized void save()
+        throws IOException
+    {
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(this.file.getName(), ".tmp", directory);
+        try( DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile))) ) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.highWaterMarks.size());
+            for( Map.Entry<String, String> highWaterMark : this.highWaterMarks.entrySet() ) {
+                out.writeUTF(highWaterMark.getKey());
+                out.writeUTF(highWaterMark.getValue());
+            }
+            out.writeInt(this.fingerprints.size());
+            for( long fingerprint : this.fingerprints.toArray() ) {
+                out.writeLong(fingerprint);
+            }
+        }
+        Files.move(tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info(String.format("Recorded %s newly uploaded expense(s) in delta store %s",
+            this.recorded,
+            this.file.getAbsolutePath()));
+    }
+
+    /**
+     * Continues the FNV-1a hash of the expense with the user
+     */
+    private static long getFingerprint( String user, Expense expense )
+    {
+        long hash = expense.getFingerprint();
+        for( int i = 0; i < user.length(); i++ ) {
+            char c = user.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private String getKey( String costCenter )
+    {
+        return this.controllingArea + "/" + CostCenterConfig.normalizeCostCenter(costCenter);
+    }
+}
@@ -0,0 +1,114 @@
+package com.sap.expenseuploader.expenses;
+
+import com.sap.expenseuploader.model.Expense;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of expenses between one producing and one consuming thread.
+ * The producer blocks while the queue is full, so a slow consumer limits the memory used.
+ */
+public class ExpensePipe implements ExpenseSink, Iterator<Expense>
+{
+    // Marks the end of the expenses, can't be an expense itself
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private volatile boolean aborted = false;
+    private volatile Exception failure;
+    private Object next;
+
+    public ExpensePipe( int capacity )
+    {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void put( Expense expense )
+    {
+        enqueue(expense);
+    }
+
+    /**
+     * Called by the producer after the last expense
+     */
+    public void close()
+    {
+        enqueue(END);
+    }
+
+    /**
+     * Called by the producer if it can't deliver all expenses, the consumer will get the exception
+     */
+    public void fail( Exception e )
+    {
+        this.failure = e;
+        enqueue(END);
+    }
+
+    /**
+     * Called by the consumer if it doesn't want any more expenses, the producer won't block on this pipe anymore
+     */
+    public void abort()
+    {
+        this.aborted = true;
+        this.queue.clear();
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if( this.next == null ) {
+            try {
+                this.next = this.queue.take();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for expenses", e);
+            }
+        }
+        if( this.next == END ) {
+            if( this.failure != null ) {
+                throw new RuntimeException("Failed to read expenses", this.failure);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Expense next()
+    {
+        if( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        Expense result = (Expense) this.next;
+        this.next = null;
+        return result;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private void enqueue( Object element )
+    {
+        try {
+            while( !this.aborted ) {
+                if( this.queue.offer(element, 100, TimeUnit.MILLISECONDS) ) {
+                    return;
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while passing on expenses", e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.sap.expenseuploader.expenses;
+
+import com.sap.expenseuploader.expenses.input.ExpenseInput;
+import com.sap.expenseuploader.expenses.output.ExpenseOutput;
+import com.sap.expenseuploader.model.Expense;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams the expenses of one input to all outputs. Every output runs in its own thread and
+ * consumes the expenses while the input is still reading them. The outputs are fed through
+ * bounded pipes, so at most a few thousand expenses per output are held in memory.
+ */
+public class ExpensePipeline
+{
+    private static final Logger logger = LogManager.getLogger(ExpensePipeline.class);
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final ExpenseInput input;
+    private final List<ExpenseOutput> outputs;
+    private final int capacity;
+
+    public ExpensePipeline( ExpenseInput input, List<ExpenseOutput> outputs )
+    {
+        this(input, outputs, DEFAULT_CAPACITY);
+    }
+
+    public ExpensePipeline( ExpenseInput input, List<ExpenseOutput> outputs, int capacity )
+    {
+        this.input = input;
+        this.outputs = outputs;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reads all expenses and waits until all outputs are done
+     *
+     * @return the number of expenses read from the input
+     */
+    public long run()
+        throws IOException, ParseException
+    {
+        final List<ExpensePipe> pipes = new ArrayList<>();
+        final List<RuntimeException> errors = Collections.synchronizedList(new ArrayList<RuntimeException>());
+        List<Thread> threads = new ArrayList<>();
+        for( int i = 0; i < this.outputs.size(); i++ ) {
+            final ExpenseOutput output = this.outputs.get(i);
+            final ExpensePipe pipe = new ExpensePipe(this.capacity);
+            pipes.add(pipe);
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        output.putExpenses(pipe);
+                    }
+                    catch( RuntimeException e ) {
+                        logger.error("Output " + output.getClass().getSimpleName() + " failed", e);
+                        errors.add(e);
+                    }
+                    finally {
+                        // Don't let the input wait for an output that has stopped
+                        pipe.abort();
+                    }
+                }
+            }, "expense-output-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        final long[] count = { 0 };
+        try {
+            this.input.readExpenses(new ExpenseSink()
+            {
+                @Override
+                public void put( Expense expense )
+                {
+                    count[0]++;
+                    for( ExpensePipe pipe : pipes ) {
+                        pipe.put(expense);
+                    }
+                }
+            });
+            for( ExpensePipe pipe : pipes ) {
+                pipe.close();
+            }
+        }
+        catch( IOException | ParseException | RuntimeException e ) {
+            for( ExpensePipe pipe : pipes ) {
+                pipe.fail(e);
+            }
+            join(threads);
+            throw e;
+        }
+
+        join(threads);
+        if( !errors.isEmpty() ) {
+            throw errors.get(0);
+        }
+        return count[0];
+    }
+
+    private static void join( List<Thread> threads )
+    {
+        for( Thread thread : threads ) {
+            try {
+                thread.join();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the outputs", e);
+            }
+        }
+    }
+}
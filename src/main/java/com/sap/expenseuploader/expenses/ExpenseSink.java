@@ -0,0 +1,11 @@
+package com.sap.expenseuploader.expenses;
+
+import com.sap.expenseuploader.model.Expense;
+
+/**
+ * Receives the expenses of an input one by one, while the input is still reading
+ */
+public interface ExpenseSink
+{
+    void put( Expense expense );
+}
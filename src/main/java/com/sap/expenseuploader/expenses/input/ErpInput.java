@@ -1,19 +1,28 @@
 package com.sap.expenseuploader.expenses.input;
 
 import com.sap.conn.jco.*;
+import com.sap.expenseuploader.ErpCostCenterCache;
 import com.sap.expenseuploader.Helper;
 import com.sap.expenseuploader.config.ErpExpenseInputConfig;
+import com.sap.expenseuploader.config.ErpSession;
 import com.sap.expenseuploader.config.costcenter.CostCenterConfig;
+import com.sap.expenseuploader.expenses.ExpenseSink;
+import com.sap.expenseuploader.metrics.Metrics;
 import com.sap.expenseuploader.model.ControllingDocumentData;
 import com.sap.expenseuploader.model.Expense;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Reads expenses from the ERP system, whose configurations should be stored
  * in the file <system-name>.jcoDestination. E.g. system.jcoDestination
+ * <p>
+ * The extraction can be split into slices of posting date windows and cost center groups,
+ * so that each BAPI call stays short and only the tables of one slice are held in memory.
  */
 public class ErpInput implements ExpenseInput
 {
@@ -22,11 +31,18 @@ public class ErpInput implements ExpenseInput
     private static final String LINE_ITEMS_TABLE = "LINE_ITEMS";
     private static final String INPUT_DOCUMENT_STRUCTURE = "DOCUMENT";
     private static final String SELECT_CRITERIA_TABLE = "SELECT_CRITERIA";
+    // Smaller tables are converted by one thread, the overhead of parallel conversion would be larger than the gain
+    private static final int MIN_ROWS_PER_TASK = 20000;
 
     private final Logger logger = LogManager.getLogger(this.getClass());
 
     ErpExpenseInputConfig erpExpenseInputConfig;
     CostCenterConfig costCenterConfig;
+    // Optional, otherwise the cost centers are read from the ERP in every run
+    ErpCostCenterCache costCenterCache;
+    // Converts the line items of all slices while they are read, shared so that parallel slices don't use
+    // more conversion threads than there are processors
+    private ExecutorService conversionPool;
 
     public ErpInput( ErpExpenseInputConfig erpExpenseInputConfig, CostCenterConfig costCenterConfig )
     {
@@ -34,58 +50,58 @@ public class ErpInput implements ExpenseInput
         this.costCenterConfig = costCenterConfig;
     }
 
+    public void setCostCenterCache( ErpCostCenterCache costCenterCache )
+    {
+        this.costCenterCache = costCenterCache;
+    }
+
     /**
      * Retrieves expense items from an ERP via JCO.
      *
      * @return
-     * @throws JCoException
+     * @throws IOException
      */
     @Override
     public List<Expense> getExpenses()
+        throws IOException, java.text.ParseException
     {
-        List<Expense> expenses = new ArrayList<>();
-
-        // Get all expenses via JCO
-        try {
-            JCoDestination destination = erpExpenseInputConfig.getJcoDestination();
-            JCoRepository repository = destination.getRepository();
-            JCoContext.begin(destination);
-            JCoFunction bapiAccCoDocFind = repository.getFunctionTemplate(BAPI_NAME).getFunction();
-
-            bapiAccCoDocFind.getImportParameterList().setValue("RETURN_ITEMS", "X");
-            bapiAccCoDocFind.getImportParameterList().setValue("RETURN_COSTS", "X");
-
-            // Fill BAPI Imports
-            JCoStructure input = bapiAccCoDocFind.getImportParameterList().getStructure(INPUT_DOCUMENT_STRUCTURE);
-            input.setValue("CO_AREA", erpExpenseInputConfig.getControllingArea());
-            if( erpExpenseInputConfig.hasPeriod() ) {
-                input.setValue("PERIOD", erpExpenseInputConfig.getPeriod());
+        final List<Expense> expenses = new ArrayList<>();
+        readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                expenses.add(expense);
             }
+        });
+        return expenses;
+    }
 
-            JCoTable table = bapiAccCoDocFind.getTableParameterList().getTable(SELECT_CRITERIA_TABLE);
-
-            // Add date range to the query
-            table.appendRow();
-            table.setValue("FIELD", "POSTGDATE");
-            table.setValue("SIGN", "I");
-            table.setValue("OPTION", "BT");
-            table.setValue("LOW", erpExpenseInputConfig.getFromTime());
-            table.setValue("HIGH", erpExpenseInputConfig.getToTime());
+    /**
+     * Retrieves expense items from an ERP via JCO, the expenses of each slice are passed on
+     * before the next slices are read.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void readExpenses( ExpenseSink sink )
+        throws IOException, java.text.ParseException
+    {
+        // Get all expenses via JCO
+        final long start = System.nanoTime();
+        try( ErpSession session = erpExpenseInputConfig.openSession() ) {
+            final JCoDestination destination = session.getDestination();
 
             // Check the existence of the config cost centers in the erp
-            Set<String> erpCostCenters = Helper.getErpCostCenters(erpExpenseInputConfig);
+            Set<String> erpCostCenters = this.costCenterCache == null
+                ? Helper.getErpCostCenters(erpExpenseInputConfig)
+                : this.costCenterCache.getCostCenters(erpExpenseInputConfig);
 
-            // Add all cost centers to the query
             boolean anyCostCenterExistsInErp = false;
             for( String costCenter : costCenterConfig.getCostCenterList() ) {
                 if( erpCostCenters.contains(costCenter) ) {
                     anyCostCenterExistsInErp = true;
                 }
-                table.appendRow();
-                table.setValue("FIELD", "KOSTL");
-                table.setValue("SIGN", "I");
-                table.setValue("OPTION", "EQ");
-                table.setValue("LOW", costCenter);
             }
             if( anyCostCenterExistsInErp ) {
                 logger.info(
@@ -93,68 +109,329 @@ public class ErpInput implements ExpenseInput
             } else {
                 logger.error(
                     "None of these cost centers exist in the ERP: " + costCenterConfig.getCostCenterList().toString());
-                return Collections.emptyList();
+                return;
             }
 
-            // Execute BAPI
-            bapiAccCoDocFind.execute(destination);
+            // Split the extraction into slices
+            List<List<String>> costCenterGroups =
+                erpExpenseInputConfig.getCostCenterGroups(costCenterConfig.getCostCenterList());
+            List<Callable<List<Expense>>> slices = new ArrayList<>();
+            for( final String[] dateWindow : erpExpenseInputConfig.getPostingDateWindows() ) {
+                for( final List<String> costCenters : costCenterGroups ) {
+                    slices.add(new Callable<List<Expense>>()
+                    {
+                        @Override
+                        public List<Expense> call()
+                            throws JCoException
+                        {
+                            return readSlice(destination, dateWindow[0], dateWindow[1], costCenters);
+                        }
+                    });
+                }
+            }
+
+            long count;
+            this.conversionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                count = runSlices(slices, sink);
+            }
+            finally {
+                this.conversionPool.shutdownNow();
+                this.conversionPool = null;
+            }
+            logger.info("Found " + count + " line items in the ERP");
+            Metrics.counter("input_rows_total", "input", "erp").add(count);
+        }
+        catch( JCoException e ) {
+            logger.error("There was a problem downloading data from the ERP! Please check your jcoDestination file.");
+            throw new IOException("Failed to read expenses from the ERP", e);
+        }
+        finally {
+            Metrics.histogram("input_read_seconds", "input", "erp").observeSince(start);
+        }
+    }
+
+    /**
+     * Runs the slices one after another, or in parallel if more than one ERP thread is configured.
+     * The expenses are passed to the sink in the order of the slices. In parallel mode only a few
+     * slices are read ahead, so that the memory stays bounded.
+     *
+     * @return the number of expenses
+     */
+    private long runSlices( List<Callable<List<Expense>>> slices, ExpenseSink sink )
+        throws JCoException
+    {
+        int threads = Math.min(erpExpenseInputConfig.getThreads(), slices.size());
+        logger.info(String.format("Reading line items from the ERP in %s slice(s) using %s thread(s) ...",
+            slices.size(),
+            threads));
 
-            // Read returned tables
-            JCoTable docHeaders = bapiAccCoDocFind.getTableParameterList().getTable(DOC_HEADER_TABLE);
-            JCoTable lineItems = bapiAccCoDocFind.getTableParameterList().getTable(LINE_ITEMS_TABLE);
+        long count = 0;
+        if( threads <= 1 ) {
+            for( Callable<List<Expense>> slice : slices ) {
+                try {
+                    count += putAll(slice.call(), sink);
+                }
+                catch( JCoException | RuntimeException e ) {
+                    throw e;
+                }
+                catch( Exception e ) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return count;
+        }
 
-            // Did we get data?
-            if( docHeaders.isEmpty() ) {
-                logger.warn("No doc headers!");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<List<Expense>>> running = new ArrayDeque<>();
+            Iterator<Callable<List<Expense>>> pending = slices.iterator();
+            while( running.size() < threads && pending.hasNext() ) {
+                running.add(pool.submit(pending.next()));
+            }
+            while( !running.isEmpty() ) {
+                List<Expense> expenses = running.poll().get();
+                if( pending.hasNext() ) {
+                    running.add(pool.submit(pending.next()));
+                }
+                count += putAll(expenses, sink);
             }
-            if( lineItems.isEmpty() ) {
-                logger.warn("No line items!");
-                return null;
+            return count;
+        }
+        catch( ExecutionException e ) {
+            if( e.getCause() instanceof JCoException ) {
+                throw (JCoException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int putAll( List<Expense> expenses, ExpenseSink sink )
+    {
+        for( Expense expense : expenses ) {
+            sink.put(expense);
+        }
+        return expenses.size();
+    }
+
+    /**
+     * Reads the line items of one posting date window and group of cost centers
+     */
+    private List<Expense> readSlice( JCoDestination destination, String fromTime, String toTime,
+        List<String> costCenters )
+        throws JCoException
+    {
+        JCoRepository repository = destination.getRepository();
+        JCoFunction bapiAccCoDocFind = repository.getFunctionTemplate(BAPI_NAME).getFunction();
+
+        bapiAccCoDocFind.getImportParameterList().setValue("RETURN_ITEMS", "X");
+        bapiAccCoDocFind.getImportParameterList().setValue("RETURN_COSTS", "X");
+
+        // Fill BAPI Imports
+        JCoStructure input = bapiAccCoDocFind.getImportParameterList().getStructure(INPUT_DOCUMENT_STRUCTURE);
+        input.setValue("CO_AREA", erpExpenseInputConfig.getControllingArea());
+        if( erpExpenseInputConfig.hasPeriod() ) {
+            input.setValue("PERIOD", erpExpenseInputConfig.getPeriod());
+        }
+
+        JCoTable table = bapiAccCoDocFind.getTableParameterList().getTable(SELECT_CRITERIA_TABLE);
+
+        // Add date range to the query
+        table.appendRow();
+        table.setValue("FIELD", "POSTGDATE");
+        table.setValue("SIGN", "I");
+        table.setValue("OPTION", "BT");
+        table.setValue("LOW", fromTime);
+        table.setValue("HIGH", toTime);
+
+        // Add the cost centers to the query
+        for( String costCenter : costCenters ) {
+            table.appendRow();
+            table.setValue("FIELD", "KOSTL");
+            table.setValue("SIGN", "I");
+            table.setValue("OPTION", "EQ");
+            table.setValue("LOW", costCenter);
+        }
+
+        // Execute BAPI
+        final long start = System.nanoTime();
+        bapiAccCoDocFind.execute(destination);
+        Metrics.histogram("erp_bapi_seconds", "bapi", BAPI_NAME).observeSince(start);
+
+        // Read returned tables
+        JCoTable docHeaders = bapiAccCoDocFind.getTableParameterList().getTable(DOC_HEADER_TABLE);
+        JCoTable lineItems = bapiAccCoDocFind.getTableParameterList().getTable(LINE_ITEMS_TABLE);
+
+        // Did we get data?
+        String sliceName = String.format("%s - %s, %s cost center(s)", fromTime, toTime, costCenters.size());
+        if( docHeaders.isEmpty() ) {
+            logger.warn("No doc headers for " + sliceName + "!");
+        }
+        if( lineItems.isEmpty() ) {
+            logger.warn("No line items for " + sliceName + "!");
+            return Collections.emptyList();
+        }
+        logger.info("Found " + lineItems.getNumRows() + " line items in the ERP for " + sliceName);
+
+        // Store temporarily relevant information from the header document
+        // in a HashMap to access them efficiently
+        HashMap<String, ControllingDocumentData> headerDocumentsMap = new HashMap<>();
+        while( !docHeaders.isLastRow() ) {
+            ControllingDocumentData value = new ControllingDocumentData(docHeaders.getString("POSTGDATE"),
+                docHeaders.getString("CO_AREA_CURR"));
+            String key = docHeaders.getString("DOC_NO");
+            headerDocumentsMap.put(key, value);
+            docHeaders.nextRow();
+        }
+
+        // The cursor of the table is not thread-safe, so the columns are copied out before the conversion
+        LineItems items = new LineItems(lineItems);
+        return convertLineItems(items, headerDocumentsMap);
+    }
+
+    /**
+     * Converts the line items to expenses. Large tables are split into ranges of rows, which are converted
+     * in parallel on the shared conversion pool and merged in their original order.
+     */
+    private List<Expense> convertLineItems( final LineItems items,
+        final Map<String, ControllingDocumentData> headerDocumentsMap )
+    {
+        ExecutorService pool = this.conversionPool;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int tasks = Math.min(threads, (items.size() + MIN_ROWS_PER_TASK - 1) / MIN_ROWS_PER_TASK);
+        if( tasks <= 1 || pool == null ) {
+            return items.toExpenses(0, items.size(), headerDocumentsMap);
+        }
+
+        List<Future<List<Expense>>> ranges = new ArrayList<>();
+        try {
+            int rowsPerTask = (items.size() + tasks - 1) / tasks;
+            for( int from = 0; from < items.size(); from += rowsPerTask ) {
+                final int rangeFrom = from;
+                final int rangeTo = Math.min(from + rowsPerTask, items.size());
+                ranges.add(pool.submit(new Callable<List<Expense>>()
+                {
+                    @Override
+                    public List<Expense> call()
+                    {
+                        return items.toExpenses(rangeFrom, rangeTo, headerDocumentsMap);
+                    }
+                }));
             }
-            logger.info("Found " + lineItems.getNumRows() + " line items in the ERP");
 
-            // Store temporarily relevant information from the header document
-            // in a HashMap to access them efficiently
-            HashMap<String, ControllingDocumentData> headerDocumentsMap = new HashMap<>();
-            while( !docHeaders.isLastRow() ) {
-                ControllingDocumentData value = new ControllingDocumentData(docHeaders.getString("POSTGDATE"),
-                    docHeaders.getString("CO_AREA_CURR"));
-                String key = docHeaders.getString("DOC_NO");
-                headerDocumentsMap.put(key, value);
-                docHeaders.nextRow();
+            List<Expense> expenses = new ArrayList<>(items.size());
+            for( Future<List<Expense>> range : ranges ) {
+                expenses.addAll(range.get());
             }
+            return expenses;
+        }
+        catch( ExecutionException e ) {
+            if( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally {
+            // The pool is shared, only stop the ranges of this table
+            for( Future<List<Expense>> range : ranges ) {
+                range.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The columns of the line items table which are needed for the expenses
+     */
+    private class LineItems
+    {
+        private final String[] documentNumbers;
+        private final String[] costCenters;
+        private final String[] costElements;
+        private final String[] personNumbers;
+        private final String[] orderIds;
+        private final String[] segmentTexts;
+        private final String[] values;
 
-            for( int i = 0; i < lineItems.getNumRows(); i++ ) {
+        LineItems( JCoTable lineItems )
+        {
+            int rows = lineItems.getNumRows();
+            this.documentNumbers = new String[rows];
+            this.costCenters = new String[rows];
+            this.costElements = new String[rows];
+            this.personNumbers = new String[rows];
+            this.orderIds = new String[rows];
+            this.segmentTexts = new String[rows];
+            this.values = new String[rows];
+
+            JCoMetaData metaData = lineItems.getMetaData();
+            int documentNumber = metaData.indexOf("DOC_NO");
+            int costCenter = metaData.indexOf("COSTCENTER");
+            int costElement = metaData.indexOf("COST_ELEM");
+            int personNumber = metaData.indexOf("PERSON_NO");
+            int orderId = metaData.indexOf("ORDERID");
+            int segmentText = metaData.indexOf("SEG_TEXT");
+            int value = metaData.indexOf("VALUE_COCUR");
+            for( int i = 0; i < rows; i++ ) {
                 lineItems.setRow(i);
+                this.documentNumbers[i] = lineItems.getString(documentNumber);
+                this.costCenters[i] = lineItems.getString(costCenter);
+                this.costElements[i] = lineItems.getString(costElement);
+                this.personNumbers[i] = lineItems.getString(personNumber);
+                this.orderIds[i] = lineItems.getString(orderId);
+                this.segmentTexts[i] = lineItems.getString(segmentText);
+                this.values[i] = lineItems.getString(value);
+            }
+        }
+
+        int size()
+        {
+            return this.documentNumbers.length;
+        }
 
-                String documentKey = lineItems.getString("DOC_NO");
-                if( !headerDocumentsMap.containsKey(documentKey) ) {
+        /**
+         * Converts the rows from (inclusive) to to (exclusive), only reads the copied columns
+         */
+        List<Expense> toExpenses( int from, int to, Map<String, ControllingDocumentData> headerDocumentsMap )
+        {
+            boolean debug = logger.isDebugEnabled();
+            List<Expense> expenses = new ArrayList<>(to - from);
+            for( int i = from; i < to; i++ ) {
+                String documentKey = this.documentNumbers[i];
+                ControllingDocumentData header = headerDocumentsMap.get(documentKey);
+                if( header == null ) {
                     logger.info("Key " + documentKey + " not found in header documents table, skipping line item ...");
-                    lineItems.nextRow();
                     continue;
                 }
 
-                Expense row = new Expense(headerDocumentsMap.get(documentKey).getDocumentDate(),
+                // The cost center is stripped by the expense itself
+                Expense row = new Expense(header.getDocumentDate(),
                     "ACTUAL",
-                    Helper.stripLeadingZeros(lineItems.getString("COSTCENTER")),
-                    Helper.stripLeadingZeros(lineItems.getString("COST_ELEM")),
-                    Helper.stripLeadingZeros(lineItems.getString("PERSON_NO")),
-                    Helper.stripLeadingZeros(lineItems.getString("ORDERID")),
-                    lineItems.getString("SEG_TEXT"),
+                    this.costCenters[i],
+                    Helper.stripLeadingZeros(this.costElements[i]),
+                    Helper.stripLeadingZeros(this.personNumbers[i]),
+                    Helper.stripLeadingZeros(this.orderIds[i]),
+                    this.segmentTexts[i],
                     "",
-                    lineItems.getString("VALUE_COCUR"),
-                    headerDocumentsMap.get(documentKey).getDocumentCurrency(),
-                    Helper.stripLeadingZeros(lineItems.getString("DOC_NO")));
+                    this.values[i],
+                    header.getDocumentCurrency(),
+                    Helper.stripLeadingZeros(documentKey));
                 expenses.add(row);
-                logger.debug("Got expense: " + row.toString());
+                if( debug ) {
+                    logger.debug("Got expense: " + row.toString());
+                }
             }
+            return expenses;
         }
-        catch( JCoException e ) {
-            logger.error("There was a problem downloading data from the ERP! Please check your jcoDestination file.");
-            e.printStackTrace();
-            return null;
-        }
-
-        return expenses;
     }
 }
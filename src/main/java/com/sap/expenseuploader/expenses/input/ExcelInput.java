@@ -1,17 +1,31 @@
 package com.sap.expenseuploader.expenses.input;
 
+import com.sap.expenseuploader.expenses.ExpenseSink;
+import com.sap.expenseuploader.metrics.Counter;
+import com.sap.expenseuploader.metrics.Metrics;
 import com.sap.expenseuploader.model.Expense;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -20,12 +34,15 @@ import java.util.List;
  * Example excel sheet can be found in /test/resources
  * <p>
  * The entire first sheet of the Excel file is used as input. Command line parameters are not respected.
+ * XLSX files are streamed, so they can be much larger than the available memory, XLS files are loaded at once.
  */
 public class ExcelInput implements ExpenseInput
 {
     private static final Logger logger = LogManager.getLogger(ExcelInput.class);
 
     private File inputFile;
+    // Formatting cells is expensive to set up, so all cells share one formatter
+    private final DataFormatter dataFormatter = new DataFormatter();
 
     public ExcelInput( String path )
     {
@@ -35,70 +52,197 @@ public class ExcelInput implements ExpenseInput
     @Override
     public List<Expense> getExpenses()
         throws IOException
+    {
+        final List<Expense> expenses = new ArrayList<>();
+        readExpenses(new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                expenses.add(expense);
+            }
+        });
+        return expenses;
+    }
+
+    @Override
+    public void readExpenses( final ExpenseSink sink )
+        throws IOException
     {
         if( !this.inputFile.exists() ) {
             logger.error("Can not read from Excel file at " + this.inputFile.getAbsolutePath());
             System.exit(1);
         }
 
-        List<Expense> expenses = new ArrayList<>();
-
-        InputStream inputStream = null;
+        final Counter rows = Metrics.counter("input_rows_total", "input", "excel");
+        ExpenseSink countingSink = new ExpenseSink()
+        {
+            @Override
+            public void put( Expense expense )
+            {
+                rows.increment();
+                sink.put(expense);
+            }
+        };
+        final long start = System.nanoTime();
         try {
-            inputStream = new FileInputStream(this.inputFile);
-            Workbook workbook;
-            try {
-                workbook = new XSSFWorkbook(inputStream);
+            boolean isXls;
+            try( InputStream inputStream = new BufferedInputStream(new FileInputStream(this.inputFile)) ) {
+                isXls = NPOIFSFileSystem.hasPOIFSHeader(inputStream);
             }
-            catch( Exception e ) { // TODO catch the real exception
+            if( isXls ) {
                 logger.warn("Excel file of expenses is not in XLSX format, falling back to XLS");
-                inputStream.close();
-                inputStream = new FileInputStream(this.inputFile);
-                workbook = new HSSFWorkbook(inputStream);
+                readXlsExpenses(countingSink);
+            } else {
+                readXlsxExpenses(countingSink);
             }
+        }
+        finally {
+            Metrics.histogram("input_read_seconds", "input", "excel").observeSince(start);
+        }
+    }
+
+    /**
+     * Parses the first sheet of an XLSX file with SAX, so neither the sheet nor the expenses
+     * have to fit into memory at once. Each row is passed on as soon as it has been parsed.
+     */
+    private void readXlsxExpenses( final ExpenseSink sink )
+        throws IOException
+    {
+        try( OPCPackage pkg = OPCPackage.open(this.inputFile, PackageAccess.READ) ) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            StylesTable styles = reader.getStylesTable();
+
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(
+                new XSSFSheetXMLHandler(styles, null, strings, new RowHandler(sink), this.dataFormatter, false));
+            try( InputStream sheet = reader.getSheetsData().next() ) {
+                parser.parse(new InputSource(sheet));
+            }
+        }
+        catch( OpenXML4JException | SAXException | ParserConfigurationException e ) {
+            throw new IOException("Can not parse Excel file at " + this.inputFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Collects the cells of each row of the sheet and turns complete rows into expenses
+     */
+    private class RowHandler implements XSSFSheetXMLHandler.SheetContentsHandler
+    {
+        private final ExpenseSink sink;
+        private int cellsNumber = 0;
+        private int rowNum;
+        private int lastColumn;
+        private String[] rowFields = new String[0];
+
+        RowHandler( ExpenseSink sink )
+        {
+            this.sink = sink;
+        }
+
+        @Override
+        public void startRow( int rowNum )
+        {
+            this.rowNum = rowNum;
+            this.lastColumn = -1;
+            Arrays.fill(this.rowFields, null);
+        }
+
+        @Override
+        public void cell( String cellReference, String formattedValue, XSSFComment comment )
+        {
+            int column = cellReference == null ? this.lastColumn + 1 : getColumnIndex(cellReference);
+            this.lastColumn = column;
+            if( this.rowNum == 0 ) {
+                // Count the header cells
+                this.cellsNumber++;
+            } else if( column < this.cellsNumber ) {
+                this.rowFields[column] = formattedValue;
+            }
+        }
+
+        @Override
+        public void endRow( int rowNum )
+        {
+            if( rowNum == 0 ) {
+                // Skip header
+                this.rowFields = new String[this.cellsNumber];
+                return;
+            }
+            Expense expense = toExpense(rowNum, Arrays.asList(this.rowFields.clone()));
+            if( expense != null ) {
+                this.sink.put(expense);
+            }
+        }
+
+        @Override
+        public void headerFooter( String text, boolean isHeader, String tagName )
+        {
+            // Not needed
+        }
+    }
+
+    /**
+     * Returns the zero based column of a cell reference like AB12
+     */
+    private static int getColumnIndex( String cellReference )
+    {
+        int column = 0;
+        for( int i = 0; i < cellReference.length(); i++ ) {
+            char c = cellReference.charAt(i);
+            if( c < 'A' || c > 'Z' ) {
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    private void readXlsExpenses( ExpenseSink sink )
+        throws IOException
+    {
+        try( InputStream inputStream = new FileInputStream(this.inputFile) ) {
+            Workbook workbook = new HSSFWorkbook(inputStream);
             Sheet firstSheet = workbook.getSheetAt(0);
 
             int cellsNumber = 0;
             for( Row nextRow : firstSheet ) {
-                try {
-                    if( nextRow.getRowNum() == 0 ) {
-                        cellsNumber = nextRow.getPhysicalNumberOfCells();
-                        // Skip header
-                        continue;
-                    }
-                    List<String> rowFields = new ArrayList<>();
-                    for( int cn = 0; cn < cellsNumber; cn++ ) {
-                        try {
-                            // TODO: Why blank?
-                            final Cell cell = nextRow.getCell(cn, Row.RETURN_NULL_AND_BLANK);
-                            if( cell == null ) {
-                                rowFields.add(null);
-                            } else {
-                                String cellValue = getCellValue(cell);
-                                rowFields.add(cellValue);
-                            }
-                        }
-                        catch( Exception e ) {
-                            throw new RuntimeException("Error in cell index " + cn, e);
-                        }
+                if( nextRow.getRowNum() == 0 ) {
+                    cellsNumber = nextRow.getPhysicalNumberOfCells();
+                    // Skip header
+                    continue;
+                }
+                List<String> rowFields = new ArrayList<>(cellsNumber);
+                for( int cn = 0; cn < cellsNumber; cn++ ) {
+                    // TODO: Why blank?
+                    final Cell cell = nextRow.getCell(cn, Row.RETURN_NULL_AND_BLANK);
+                    if( cell == null ) {
+                        rowFields.add(null);
+                    } else {
+                        rowFields.add(this.dataFormatter.formatCellValue(cell));
                     }
-                    Expense expense = new Expense(rowFields);
-                    expenses.add(expense);
                 }
-                catch( Exception e ) {
-                    logger.error("Error in row " + nextRow.getRowNum(), e);
+                Expense expense = toExpense(nextRow.getRowNum(), rowFields);
+                if( expense != null ) {
+                    sink.put(expense);
                 }
             }
         }
-        finally {
-            inputStream.close();
-        }
-        return expenses;
     }
 
-    private String getCellValue( Cell cell )
+    /**
+     * @return the expense of the row, or null if the row is invalid
+     */
+    private Expense toExpense( int rowNum, List<String> rowFields )
     {
-        DataFormatter dataFormatter = new DataFormatter();
-        return dataFormatter.formatCellValue(cell);
+        try {
+            return new Expense(rowFields);
+        }
+        catch( Exception e ) {
+            logger.error("Error in row " + rowNum, e);
+            return null;
+        }
     }
 }
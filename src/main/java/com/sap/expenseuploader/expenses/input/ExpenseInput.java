@@ -1,5 +1,6 @@
 package com.sap.expenseuploader.expenses.input;
 
+import com.sap.expenseuploader.expenses.ExpenseSink;
 import com.sap.expenseuploader.model.Expense;
 
 import java.io.IOException;
@@ -10,4 +11,10 @@ public interface ExpenseInput
 {
     List<Expense> getExpenses()
         throws IOException, ParseException;
+
+    /**
+     * Passes every expense to the sink as soon as it is read, without keeping all of them in memory
+     */
+    void readExpenses( ExpenseSink sink )
+        throws IOException, ParseException;
 }
@@ -0,0 +1,144 @@
+package com.sap.expenseuploader.expenses.output;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Chooses the number of expenses per upload request from the observed responses (additive increase,
+ * multiplicative decrease). Fast uploads increase the batch size step by step, slow uploads and overload
+ * responses (413 or 5xx) decrease it quickly. The size always stays within the configured bounds.
+ * <p>
+ * Additionally a batch must not exceed a maximum number of serialized bytes, so that a few large context
+ * strings don't push a request over the body limit of the gateway. The number of expenses which fit into
+ * this byte budget is estimated from the average size of the expenses uploaded so far.
+ * <p>
+ * This class is thread-safe, all upload threads report to the same instance.
+ */
+public class AdaptiveBatchSizer
+{
+    private static final Logger logger = LogManager.getLogger(AdaptiveBatchSizer.class);
+
+    public static final int DEFAULT_MIN_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    // Uploads slower than this decrease the batch size
+    public static final long TARGET_LATENCY_MILLIS = 20 * 1000;
+
+    private static final double SLOW_DECREASE_FACTOR = 0.75;
+    private static final double OVERLOAD_DECREASE_FACTOR = 0.5;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxBatchBytes;
+    private final int increaseStep;
+
+    private int batchSize;
+    private int smallestBatchSize;
+    private int largestBatchSize;
+
+    // Serialized bytes and expenses of all uploaded batches, for the average expense size
+    private long totalBytes = 0;
+    private long totalExpenses = 0;
+
+    public AdaptiveBatchSizer()
+    {
+        this(DEFAULT_MIN_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @param minBatchSize
+     * @param maxBatchSize also the initial batch size
+     * @param maxBatchBytes maximum size of the serialized batch
+     */
+    public AdaptiveBatchSizer( int minBatchSize, int maxBatchSize, int maxBatchBytes )
+    {
+        if( minBatchSize < 1 || maxBatchSize < minBatchSize ) {
+            throw new IllegalArgumentException(
+                "Invalid batch size bounds " + minBatchSize + " to " + maxBatchSize);
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.increaseStep = Math.max(1, (maxBatchSize - minBatchSize) / 10);
+        this.batchSize = maxBatchSize;
+        this.smallestBatchSize = maxBatchSize;
+        this.largestBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the number of expenses for the next batch
+     */
+    public synchronized int getBatchSize()
+    {
+        if( this.totalExpenses == 0 ) {
+            return this.batchSize;
+        }
+        // Leave some room, the expenses of a batch are not all of average size
+        long fitting = this.maxBatchBytes * 9L / 10 * this.totalExpenses / this.totalBytes;
+        return (int) Math.max(this.minBatchSize, Math.min(this.batchSize, fitting));
+    }
+
+    public int getMaxBatchBytes()
+    {
+        return this.maxBatchBytes;
+    }
+
+    /**
+     * Reports the size of a serialized batch
+     */
+    public synchronized void onSerialized( int expenses, int bytes )
+    {
+        this.totalExpenses += expenses;
+        this.totalBytes += bytes;
+    }
+
+    /**
+     * Reports an upload with its HTTP status code and its duration
+     */
+    public synchronized void onResponse( int statusCode, long durationMillis )
+    {
+        if( statusCode == 413 || statusCode >= 500 ) {
+            resize((int) (this.batchSize * OVERLOAD_DECREASE_FACTOR), "HTTP " + statusCode);
+        } else if( durationMillis > TARGET_LATENCY_MILLIS ) {
+            resize((int) (this.batchSize * SLOW_DECREASE_FACTOR),
+                String.format("upload took %.1f second(s)", durationMillis / 1000.0));
+        } else if( statusCode == 200 ) {
+            resize(this.batchSize + this.increaseStep, "fast upload");
+        }
+    }
+
+    /**
+     * Reports a failed upload without response, e.g. a timeout
+     */
+    public synchronized void onError()
+    {
+        resize((int) (this.batchSize * OVERLOAD_DECREASE_FACTOR), "no response");
+    }
+
+    private void resize( int newSize, String reason )
+    {
+        newSize = Math.max(this.minBatchSize, Math.min(this.maxBatchSize, newSize));
+        if( newSize == this.batchSize ) {
+            return;
+        }
+        logger.info(String.format("Changing the batch size from %s to %s expenses (%s)",
+            this.batchSize,
+            newSize,
+            reason));
+        this.batchSize = newSize;
+        this.smallestBatchSize = Math.min(this.smallestBatchSize, newSize);
+        this.largestBatchSize = Math.max(this.largestBatchSize, newSize);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("batch size %s (between %s and %s during the run, bounds %s to %s), %s bytes per expense",
+            this.batchSize,
+            this.smallestBatchSize,
+            this.largestBatchSize,
+            this.minBatchSize,
+            this.maxBatchSize,
+            this.totalExpenses == 0 ? "?" : String.valueOf(this.totalBytes / this.totalExpenses));
+    }
+}
@@ -1,11 +1,11 @@
 package com.sap.expenseuploader.expenses.output;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.sap.expenseuploader.model.Expense;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -16,18 +16,25 @@ public class CliOutput implements ExpenseOutput
 {
     private final Logger logger = LogManager.getLogger(this.getClass());
 
+    private static final Gson GSON = new Gson();
+
     public CliOutput()
     {
     }
 
     @Override
     public void putExpenses( List<Expense> expenses )
+    {
+        putExpenses(expenses.iterator());
+    }
+
+    @Override
+    public void putExpenses( Iterator<Expense> expenses )
     {
         logger.info("Writing expenses to command line ...");
 
-        for( Expense expense : expenses ) {
-            Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd").create();
-            System.out.println(gson.toJson(expense));
+        while( expenses.hasNext() ) {
+            System.out.println(GSON.toJson(expenses.next()));
         }
 
         logger.info("Done writing expenses to command line");
@@ -6,13 +6,13 @@ import org.apache.logging.log4j.Logger;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -24,6 +24,8 @@ import java.util.List;
  */
 public class ExcelOutput implements ExpenseOutput
 {
+    private static final int AMOUNT_COLUMN = 8;
+
     private final Logger logger = LogManager.getLogger(this.getClass());
 
     private File outputFile;
@@ -35,11 +37,20 @@ public class ExcelOutput implements ExpenseOutput
 
     @Override
     public void putExpenses( List<Expense> expenses )
+    {
+        putExpenses(expenses.iterator());
+    }
+
+    /**
+     * Rows are streamed into the workbook, only a small window of them is kept in memory
+     */
+    @Override
+    public void putExpenses( Iterator<Expense> expenses )
     {
         int rowCount = 0;
 
         try {
-            final Workbook wb = new SXSSFWorkbook();
+            final SXSSFWorkbook wb = new SXSSFWorkbook();
 
             FileOutputStream fileOut = new FileOutputStream(this.outputFile);
             Sheet sheet = wb.createSheet("Sheet");
@@ -63,12 +74,17 @@ public class ExcelOutput implements ExpenseOutput
             }
 
             // Write all expenses
-            for( int i = 0; i < expenses.size(); ++i ) {
-                Expense rowContent = expenses.get(i);
-                row = sheet.createRow(i + 1); // Off by one because of header row
+            while( expenses.hasNext() ) {
+                Expense rowContent = expenses.next();
+                row = sheet.createRow(rowCount + 1); // Off by one because of header row
                 for( int j = 0; j < rowContent.size(); ++j ) {
                     Cell cell = row.createCell(j);
-                    cell.setCellValue(rowContent.get(j));
+                    if( j == AMOUNT_COLUMN ) {
+                        // As number, the expense doesn't keep the text of the input
+                        cell.setCellValue(rowContent.getAmount());
+                    } else {
+                        cell.setCellValue(rowContent.get(j));
+                    }
                 }
                 rowCount += 1;
             }
@@ -77,6 +93,8 @@ public class ExcelOutput implements ExpenseOutput
             wb.write(fileOut);
             fileOut.flush();
             fileOut.close();
+            // Delete the temporary files of the streamed rows
+            wb.dispose();
         }
         catch( IOException e ) {
             logger.error("Error writing to file: " + this.outputFile.getAbsolutePath());
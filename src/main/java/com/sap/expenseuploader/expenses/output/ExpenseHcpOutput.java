@@ -1,30 +1,36 @@
 package com.sap.expenseuploader.expenses.output;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.sap.expenseuploader.config.ErpExpenseInputConfig;
 import com.sap.expenseuploader.config.HcpConfig;
 import com.sap.expenseuploader.config.costcenter.CostCenterConfig;
+import com.sap.expenseuploader.expenses.DeltaStore;
+import com.sap.expenseuploader.hcp.HcpTransport;
+import com.sap.expenseuploader.metrics.Metrics;
 import com.sap.expenseuploader.model.Expense;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.management.relation.RoleNotFoundException;
-import java.io.File;
-import java.io.FilenameFilter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static com.sap.expenseuploader.config.HcpConfig.getBodyFromResponse;
 
 /**
  * This is the most common method of output, to upload expenses to the HCP realspend
@@ -35,22 +41,59 @@ public class ExpenseHcpOutput implements ExpenseOutput
     private final Logger logger = LogManager.getLogger(this.getClass());
 
     public static final Path REQ_DUMP_FOLDER = Paths.get("requests");
-    public static final int MAX_BATCH_SIZE = 1000;
+
+    // Gson instances are thread-safe, so they are shared by all upload threads.
+    // Expenses format their dates themselves, see ExpenseTypeAdapter.
+    private static final Gson GSON = new Gson();
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
 
     private HcpConfig hcpConfig;
+    private HcpTransport transport;
     private CostCenterConfig costCenterConfig;
     private ErpExpenseInputConfig erpExpenseInputConfig;
+    // Optional, records the successfully uploaded expenses for delta uploads
+    private DeltaStore deltaStore;
+    private AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer();
+
+    // Journal of the batches of this run, opened with the first batch
+    private UploadJournal journal;
+
+    // Counters shared by all upload threads
+    private final AtomicLong uploadedExpenses = new AtomicLong();
+    private final AtomicLong uploadedBatches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
 
     public ExpenseHcpOutput( HcpConfig hcpConfig, CostCenterConfig costCenterConfig,
         ErpExpenseInputConfig erpExpenseInputConfig )
     {
         this.hcpConfig = hcpConfig;
+        this.transport = hcpConfig.getTransport();
         this.costCenterConfig = costCenterConfig;
         this.erpExpenseInputConfig = erpExpenseInputConfig;
     }
 
+    public void setDeltaStore( DeltaStore deltaStore )
+    {
+        this.deltaStore = deltaStore;
+    }
+
+    public void setBatchSizer( AdaptiveBatchSizer batchSizer )
+    {
+        this.batchSizer = batchSizer;
+    }
+
     @Override
     public void putExpenses( List<Expense> expenses )
+    {
+        putExpenses(expenses.iterator());
+    }
+
+    /**
+     * Routes the expenses to their users while they are read. As soon as a user has a full batch,
+     * it is uploaded in the background, so only the incomplete batch of each user is kept in memory.
+     */
+    @Override
+    public void putExpenses( Iterator<Expense> expenses )
     {
         logger.info("Writing expenses to HCP at " + this.hcpConfig.getHcpUrl() + "...");
 
@@ -63,101 +106,280 @@ public class ExpenseHcpOutput implements ExpenseOutput
                 return;
             }
 
-            // Upload the given expenses
-            for( String user : this.costCenterConfig.getUserList() ) {
-                List<String> costCenters = this.costCenterConfig.getCostCenters(user);
-                List<Expense> userExpenses = new ArrayList<>();
-                for( Expense expense : expenses ) {
-                    if( expense.isInCostCenter(costCenters) ) {
-                        userExpenses.add(expense);
+            Map<String, List<String>> costCenterUsers = this.costCenterConfig.getNormalizedCostCenterUsers();
+            Map<String, List<Expense>> userBatches = new HashMap<>();
+            Set<String> usersWithExpenses = new HashSet<>();
+            final long start = System.currentTimeMillis();
+            UploadQueue uploads = new UploadQueue(this.hcpConfig.getUploadThreads());
+            // Only changes when the upload threads report their responses
+            int batchSize = this.batchSizer.getBatchSize();
+            try {
+                // Assign each expense to all users who own its cost center
+                while( expenses.hasNext() ) {
+                    Expense expense = expenses.next();
+                    List<String> users =
+                        costCenterUsers.get(CostCenterConfig.normalizeCostCenter(expense.getCostCenter()));
+                    if( users == null ) {
+                        continue;
+                    }
+                    for( String user : users ) {
+                        if( this.deltaStore != null && this.deltaStore.contains(user, expense) ) {
+                            // Uploaded to this user before, but not to all users of the cost center
+                            continue;
+                        }
+                        List<Expense> batch = userBatches.get(user);
+                        if( batch == null ) {
+                            batch = new ArrayList<>();
+                            userBatches.put(user, batch);
+                            usersWithExpenses.add(user);
+                        }
+                        batch.add(expense);
+                        if( batch.size() >= batchSize ) {
+                            submitBatch(uploads, batch, user);
+                            userBatches.remove(user);
+                            batchSize = this.batchSizer.getBatchSize();
+                        }
                     }
-                }
-                if( userExpenses.isEmpty() ) {
-                    logger.info("No expenses to put for user " + user);
-                    continue;
                 }
 
-                int batchCounter = 1;
-                while( (batchCounter - 1) * MAX_BATCH_SIZE < userExpenses.size() ) {
-                    int fromIndex = (batchCounter - 1) * MAX_BATCH_SIZE;
-                    int toIndex = Math.min(batchCounter * MAX_BATCH_SIZE, userExpenses.size());
-                    uploadBatchExpenses(userExpenses.subList(fromIndex, toIndex), user, batchCounter);
-                    batchCounter++;
+                // Upload the last batch of each user
+                for( String user : this.costCenterConfig.getUserList() ) {
+                    if( userBatches.containsKey(user) ) {
+                        submitBatch(uploads, userBatches.remove(user), user);
+                    } else if( !usersWithExpenses.contains(user) ) {
+                        logger.info("No expenses to put for user " + user);
+                    }
                 }
+                if( uploads.getSubmitted() == 0 ) {
+                    return;
+                }
+                uploads.awaitAll();
+            }
+            finally {
+                uploads.shutdown();
+                closeJournal();
             }
+            final long duration = Math.max(System.currentTimeMillis() - start, 1);
+
+            logger.info(String.format(
+                "Uploaded %s expense(s) in %s batch(es) in %.1f second(s) (%.1f expenses/s, %.2f batches/s), %s batch(es) failed",
+                this.uploadedExpenses.get(),
+                this.uploadedBatches.get(),
+                duration / 1000.0,
+                this.uploadedExpenses.get() * 1000.0 / duration,
+                this.uploadedBatches.get() * 1000.0 / duration,
+                this.failedBatches.get()));
+            logger.info("Adaptive batching: " + this.batchSizer);
         }
         catch( Exception e ) {
             throw new RuntimeException("Failed to post expenses", e);
         }
     }
 
+    private void submitBatch( UploadQueue uploads, final List<Expense> batch, final String user )
+        throws Exception
+    {
+        if( this.journal == null ) {
+            // store the current config once for all batches
+            this.journal = UploadJournal.open(REQ_DUMP_FOLDER);
+            this.journal.writeConfig(getConfigLines());
+        }
+        uploads.submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                throws Exception
+            {
+                return uploadBatchExpenses(batch, user);
+            }
+        });
+    }
+
     /**
-     * checks the request folder if it contains any failed requests
+     * Runs the given upload tasks on a bounded pool of upload threads and waits for all of them.
+     * If one of the tasks throws an exception, the remaining tasks are cancelled and the exception is rethrown.
      *
-     * @return returns true if there's no resume required, and false otherwise
-     * @throws RoleNotFoundException
-     * @throws IOException
-     * @throws URISyntaxException
+     * @param tasks
+     * @return the number of tasks which returned true
+     * @throws Exception
      */
-    private boolean maybePerformResume()
-        throws RoleNotFoundException, IOException, URISyntaxException
+    private int runInParallel( List<Callable<Boolean>> tasks )
+        throws Exception
     {
-        if( !Files.exists(REQ_DUMP_FOLDER) ) {
-            // No resume necessary
-            return false;
+        UploadQueue uploads = new UploadQueue(Math.min(this.hcpConfig.getUploadThreads(), tasks.size()));
+        try {
+            for( Callable<Boolean> task : tasks ) {
+                uploads.submit(task);
+            }
+            return uploads.awaitAll();
+        }
+        finally {
+            uploads.shutdown();
         }
+    }
 
-        String[] failedRequestFilenames = REQ_DUMP_FOLDER.toFile().list(new FilenameFilter()
+    /**
+     * Runs upload tasks on a fixed pool of upload threads. Only a few tasks may wait for a free thread,
+     * further submits block, so that the expenses are not read faster than they can be uploaded.
+     */
+    private class UploadQueue
+    {
+        private final ExecutorService pool;
+        private final Semaphore slots;
+        private final List<Future<Boolean>> futures = new ArrayList<>();
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        UploadQueue( int threads )
         {
-            @Override
-            public boolean accept( File dir, String name )
+            logger.info(String.format("Uploading batches using %s thread(s) ...", threads));
+            this.pool = Executors.newFixedThreadPool(threads);
+            this.slots = new Semaphore(2 * threads);
+        }
+
+        void submit( final Callable<Boolean> task )
+            throws Exception
+        {
+            this.slots.acquire();
+            // Stop early if a previous task has failed
+            if( this.failure.get() != null ) {
+                this.slots.release();
+                throw this.failure.get();
+            }
+            this.futures.add(this.pool.submit(new Callable<Boolean>()
             {
-                if( name.contains("_") && !name.toLowerCase().endsWith("_200.json") ) {
-                    return true;
+                @Override
+                public Boolean call()
+                    throws Exception
+                {
+                    try {
+                        return task.call();
+                    }
+                    catch( Exception e ) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    }
+                    finally {
+                        slots.release();
+                    }
                 }
-                return false;
-            }
-        });
+            }));
+        }
+
+        int getSubmitted()
+        {
+            return this.futures.size();
+        }
 
-        if( failedRequestFilenames.length == 0 ) {
-            // In case resume function is set in the cmd options, but it's not required
-            if( this.hcpConfig.isResumeSet() ) {
-                logger.info("The previous expense uploading run was successful, no resume is required.");
+        /**
+         * @return the number of tasks which returned true
+         */
+        int awaitAll()
+            throws Exception
+        {
+            int successful = 0;
+            for( Future<Boolean> future : this.futures ) {
+                try {
+                    if( future.get() ) {
+                        successful++;
+                    }
+                }
+                catch( ExecutionException e ) {
+                    if( e.getCause() instanceof Exception ) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
             }
+            return successful;
+        }
 
-            // No failed requests in the previous run
-            deleteRequestFolder();
-            return false;
+        void shutdown()
+        {
+            this.pool.shutdownNow();
         }
+    }
 
-        // This means we have failed requests from before, we should resume
-        if( !this.hcpConfig.isResumeSet() ) {
-            // In case resume is not set but the previous run wasn't successful. -> Force the user to use it
+    /**
+     * Checks the journal of the previous run for batches which were not uploaded successfully
+     *
+     * @return true if the previous run was resumed, false if there's nothing to resume
+     * @throws Exception
+     */
+    private boolean maybePerformResume()
+        throws Exception
+    {
+        if( !Files.exists(REQ_DUMP_FOLDER) ) {
+            // No resume necessary
+            return false;
+        }
+        if( !UploadJournal.exists(REQ_DUMP_FOLDER) ) {
             logger.error(
-                "There are failed requests from a previous run. Either delete them or resume their upload by setting the 'resume' flag.");
+                "The 'requests' folder was written by an older version of the uploader. Either delete it or resume the upload with the older version.");
             System.exit(1);
         }
 
-        // Resume the previous upload
-        logger.info("Resuming the previous upload by retrying failed requests...");
-        assertCurrentConfigMatches();
-        for( String filename : failedRequestFilenames ) {
-            String batchName = filename.substring(0, filename.lastIndexOf("_"));
-            Path fullBatchFilepath = Paths.get(REQ_DUMP_FOLDER.toString(), batchName + ".json");
-            if( !Files.exists(fullBatchFilepath) ) {
-                continue;
+        List<UploadJournal.Batch> failedBatches;
+        try( UploadJournal previousJournal = UploadJournal.open(REQ_DUMP_FOLDER) ) {
+            failedBatches = previousJournal.getUnacknowledgedBatches();
+            if( failedBatches.isEmpty() ) {
+                // In case resume function is set in the cmd options, but it's not required
+                if( this.hcpConfig.isResumeSet() ) {
+                    logger.info("The previous expense uploading run was successful, no resume is required.");
+                }
+            } else {
+                // This means we have failed requests from before, we should resume
+                if( !this.hcpConfig.isResumeSet() ) {
+                    // In case resume is not set but the previous run wasn't successful. -> Force the user to use it
+                    logger.error(String.format(
+                        "There are %s failed request(s) from a previous run. Either delete the 'requests' folder or resume their upload by setting the 'resume' flag.",
+                        failedBatches.size()));
+                    System.exit(1);
+                }
+                assertCurrentConfigMatches(previousJournal.getConfig());
             }
-            String payloadString = new String(Files.readAllBytes(fullBatchFilepath));
-            if( reUploadRequest(payloadString, batchName) ) {
-                // Deleting the file with failed response in it
-                Files.delete(Paths.get(REQ_DUMP_FOLDER.toString(), filename));
-                logger.info("Expenses stored in file " + fullBatchFilepath + " were successfully uploaded.");
+        }
+        if( failedBatches.isEmpty() ) {
+            // No failed requests in the previous run
+            deleteRequestFolder();
+            return false;
+        }
+
+        // Resume the previous upload, the journal knows exactly which batches are missing
+        logger.info(String.format("Resuming the previous upload by retrying %s failed request(s)...",
+            failedBatches.size()));
+        this.journal = UploadJournal.open(REQ_DUMP_FOLDER);
+        try {
+            List<Callable<Boolean>> reUploads = new ArrayList<>();
+            for( final UploadJournal.Batch batch : failedBatches ) {
+                reUploads.add(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call()
+                        throws Exception
+                    {
+                        return reUploadRequest(batch);
+                    }
+                });
             }
+            int successful = runInParallel(reUploads);
+            logger.info(String.format("Successfully re-uploaded %s of %s request(s)", successful, reUploads.size()));
+        }
+        finally {
+            closeJournal();
         }
 
         return true;
     }
 
+    private void closeJournal()
+        throws IOException
+    {
+        if( this.journal != null ) {
+            this.journal.close();
+            this.journal = null;
+        }
+    }
+
     private void deleteRequestFolder()
     {
         try {
@@ -188,159 +410,240 @@ public class ExpenseHcpOutput implements ExpenseOutput
         }
     }
 
-    private void uploadBatchExpenses( List<Expense> expenses, String user, long batchID )
+    private boolean uploadBatchExpenses( List<Expense> expenses, String user )
         throws URISyntaxException, IOException, RoleNotFoundException
     {
-        // Create JSON payload
-        Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd").create();
-        JsonArray expensesAsJson = (JsonArray) gson.toJsonTree(expenses);
-
-        JsonObject payload = new JsonObject();
-        payload.add("expenses", expensesAsJson);
-        payload.addProperty("user", user);
-
-        // store the current config
-        assertRequestsFolderExists();
-        dumpConfig();
-
-        // storing the requests as json
-        dumpRequest("batch" + batchID, new GsonBuilder().setPrettyPrinting().create().toJson(payload));
+        final long serializationStart = System.nanoTime();
+        byte[] payload = serializeBatch(expenses, user);
+        Metrics.histogram("serialization_seconds").observeSince(serializationStart);
+        if( payload.length > this.batchSizer.getMaxBatchBytes() && expenses.size() > 1 ) {
+            // Too large for one request, upload it in two halves instead
+            logger.info(String.format("Splitting a batch of %s expenses for user %s with %s bytes",
+                expenses.size(),
+                user,
+                payload.length));
+            int half = expenses.size() / 2;
+            boolean first = uploadBatchExpenses(expenses.subList(0, half), user);
+            boolean second = uploadBatchExpenses(expenses.subList(half, expenses.size()), user);
+            return first && second;
+        }
+        this.batchSizer.onSerialized(expenses.size(), payload.length);
 
-        // Upload
-        URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/expense");
-        Request request = Request.Post(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payload.toString(), ContentType.APPLICATION_JSON);
+        // The batch is stored in the journal before it is uploaded, the stored payload is also the body of the upload
+        UploadJournal.Batch batch = this.journal.commitBatch(user, expenses.size(), payload);
 
-        logger.info(String.format("Posting %s expenses for user %s ...", expenses.size(), user));
+        logger.info(String.format("Posting %s expenses for user %s (batch %s) ...",
+            expenses.size(),
+            user,
+            batch.getId()));
 
         final long start = System.currentTimeMillis();
-        HttpResponse response = this.hcpConfig.withOptionalProxy(request).execute().returnResponse();
-        final long duration = System.currentTimeMillis() - start;
-
-        dumpResponse("batch" + batchID, response);
-
-        // Check response
-        int statusCode = response.getStatusLine().getStatusCode();
-        if( statusCode == 200 ) {
+        if( upload(batch, payload) ) {
+            final long duration = System.currentTimeMillis() - start;
             logger.info(String.format("Successfully uploaded %s expenses for user %s in %s second(s)",
                 expenses.size(),
                 user,
                 duration / 1000));
+            this.uploadedExpenses.addAndGet(expenses.size());
+            this.uploadedBatches.incrementAndGet();
+            Metrics.counter("uploaded_expenses_total").add(expenses.size());
+            if( this.deltaStore != null ) {
+                this.deltaStore.record(user, expenses);
+            }
+            return true;
         } else {
-            logger.error(String.format("Got http code %s while uploading %s expenses for user %s",
-                statusCode,
-                expenses.size(),
-                user));
-            logger.error("URL was: " + uriBuilder.build());
-            logger.error("Error is: " + getBodyFromResponse(response));
+            this.failedBatches.incrementAndGet();
+            Metrics.counter("failed_batches_total").increment();
+            return false;
         }
     }
 
-    private boolean reUploadRequest( String payloadString, String batchName )
+    private boolean reUploadRequest( UploadJournal.Batch batch )
         throws URISyntaxException, IOException
     {
-        // Upload
-        logger.info("Re-uploading the request stored in file " + batchName + ".json ...");
-        URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/expense");
-        Request request = Request.Post(uriBuilder.build())
-            .addHeader("x-csrf-token", this.hcpConfig.getCsrfToken())
-            .bodyString(payloadString, ContentType.APPLICATION_JSON);
-        HttpResponse response = this.hcpConfig.withOptionalProxy(request).execute().returnResponse();
-
-        dumpResponse(batchName, response);
-
-        // Check response
-        int statusCode = response.getStatusLine().getStatusCode();
-        if( statusCode == 200 ) {
-            return true;
+        // The payload may have been corrected in its exported file
+        Path payloadFile = getPayloadExport(batch);
+        byte[] payload;
+        if( Files.exists(payloadFile) ) {
+            logger.info("Re-uploading the request stored in file " + payloadFile + " ...");
+            payload = Files.readAllBytes(payloadFile);
         } else {
-            logger.error(String.format("Got http code %s while uploading the expenses from file %s.json",
-                statusCode,
-                batchName));
-            logger.error("URL was: " + uriBuilder.build());
-            logger.error("Error is: " + getBodyFromResponse(response));
+            logger.info(String.format("Re-uploading batch %s of user %s ...", batch.getId(), batch.getUser()));
+            payload = this.journal.readPayload(batch);
+        }
+
+        if( !upload(batch, payload) ) {
             logger.error(String.format(
                 "Please check the response file \"%s\", and then change the necessary field values in the corresponding payload file \"%s\".",
-                REQ_DUMP_FOLDER.toString() + "/" + batchName + "_" + statusCode + ".json",
-                REQ_DUMP_FOLDER.toString() + "/" + batchName + ".json"));
+                getResponseExport(batch, batch.getStatusCode()),
+                payloadFile));
             return false;
         }
+        Files.deleteIfExists(payloadFile);
+        logger.info(String.format("Expenses of batch %s were successfully uploaded.", batch.getId()));
+        if( this.deltaStore != null ) {
+            // The journaled payload, not the corrected one, holds the expenses as the input delivers them
+            this.deltaStore.record(batch.getUser(), parseBatch(this.journal.readPayload(batch)));
+        }
+        return true;
     }
 
-    private void assertCurrentConfigMatches()
-        throws IOException
+    /**
+     * Posts the payload of a batch and records the response in the journal. For a failed upload, the payload
+     * and the response are exported to files, so that they can be checked and corrected before the resume.
+     *
+     * @return true if the upload was successful
+     */
+    private boolean upload( UploadJournal.Batch batch, byte[] payload )
+        throws URISyntaxException, IOException
     {
-        final File file = new File(REQ_DUMP_FOLDER.toFile(), "config.txt");
-        List<String> oldConfig = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
-        if( !oldConfig.get(0).equals(this.hcpConfig.toString()) ) {
-            logger.error("Your HCP config has changed, the old config was: " + oldConfig.get(0));
-            logger.error("Either revert to the previous config or remove the 'requests' folder");
-            System.exit(1);
+        URIBuilder uriBuilder = new URIBuilder(this.hcpConfig.getHcpUrl() + "/rest/expense");
+        Request request = Request.Post(uriBuilder.build())
+            .body(this.transport.maybeCompress(new ByteArrayEntity(payload, ContentType.APPLICATION_JSON)));
+        final long start = System.currentTimeMillis();
+        HttpResponse response;
+        try {
+            response = this.hcpConfig.executePostWithCsrfToken(request);
         }
-        if( !oldConfig.get(1).equals(this.costCenterConfig.toString()) ) {
-            logger.error("Your cost center config has changed, the old config was: " + oldConfig.get(1));
-            logger.error("Either revert to the previous config or remove the 'requests' folder");
-            System.exit(1);
+        catch( IOException e ) {
+            this.batchSizer.onError();
+            throw e;
         }
-        if( !oldConfig.get(2).equals(this.erpExpenseInputConfig.toString()) ) {
-            logger.error("Your erp expense input config has changed, the old config was: " + oldConfig.get(2));
-            logger.error("Either revert to the previous config or remove the 'requests' folder");
-            System.exit(1);
+        this.batchSizer.onResponse(response.getStatusLine().getStatusCode(), System.currentTimeMillis() - start);
+
+        // The raw response is archived as it is, it's only decoded for failed uploads
+        int statusCode = response.getStatusLine().getStatusCode();
+        byte[] rawResponse = response.getEntity() == null ? null : EntityUtils.toByteArray(response.getEntity());
+        if( batch.getStatusCode() != 0 ) {
+            Files.deleteIfExists(getResponseExport(batch, batch.getStatusCode()));
         }
+        if( statusCode == 200 ) {
+            this.journal.recordResponse(batch, statusCode, rawResponse);
+            return true;
+        }
+
+        String responseBody = rawResponse == null ? "" : new String(rawResponse, getCharset(response));
+        logger.error(String.format("Got http code %s while uploading %s expenses for user %s (batch %s)",
+            statusCode,
+            batch.getExpenseCount(),
+            batch.getUser(),
+            batch.getId()));
+        logger.error("URL was: " + uriBuilder.build());
+        logger.error("Error is: " + responseBody);
+        exportFailure(batch, payload, statusCode, responseBody);
+        this.journal.recordResponse(batch, statusCode, rawResponse);
+        return false;
     }
 
-    private void assertRequestsFolderExists()
-        throws IOException
+    private static Charset getCharset( HttpResponse response )
+    {
+        ContentType contentType = ContentType.get(response.getEntity());
+        if( contentType == null || contentType.getCharset() == null ) {
+            return StandardCharsets.ISO_8859_1;
+        }
+        return contentType.getCharset();
+    }
+
+    private Path getPayloadExport( UploadJournal.Batch batch )
+    {
+        return REQ_DUMP_FOLDER.resolve("batch" + batch.getId() + ".json");
+    }
+
+    private Path getResponseExport( UploadJournal.Batch batch, int statusCode )
+    {
+        return REQ_DUMP_FOLDER.resolve("batch" + batch.getId() + "_" + statusCode + ".json");
+    }
+
+    private void exportFailure( UploadJournal.Batch batch, byte[] payload, int statusCode, String responseBody )
     {
         try {
-            if( !Files.isDirectory(REQ_DUMP_FOLDER) ) {
-                Files.createDirectory(REQ_DUMP_FOLDER);
+            Path payloadFile = getPayloadExport(batch);
+            if( !Files.exists(payloadFile) ) {
+                Files.write(payloadFile, payload);
+            }
+            String response = responseBody;
+            try {
+                response = PRETTY_GSON.toJson(new JsonParser().parse(responseBody));
+            }
+            catch( JsonParseException e ) {
+                // Not every error response is JSON, keep it as it is
             }
+            Files.write(getResponseExport(batch, statusCode), response.getBytes(StandardCharsets.UTF_8));
         }
-        catch( Exception e ) {
-            logger.error("Failed to create the folder " + REQ_DUMP_FOLDER);
-            throw e;
+        catch( IOException e ) {
+            logger.warn("Failed to export the failed request of batch " + batch.getId(), e);
         }
     }
 
-    private void dumpConfig()
+    private List<String> getConfigLines()
     {
-        final File file = new File(REQ_DUMP_FOLDER.toFile(), "config.txt");
-        try( PrintWriter writer = new PrintWriter(file) ) {
-            writer.write(this.hcpConfig.toString() + "\n");
-            writer.write(this.costCenterConfig.toString() + "\n");
-            writer.write(this.erpExpenseInputConfig.toString() + "\n");
-        }
-        catch( Exception e ) {
-            throw new RuntimeException(e);
-        }
+        return Arrays.asList(this.hcpConfig.toString(),
+            this.costCenterConfig.toString(),
+            String.valueOf(this.erpExpenseInputConfig));
     }
 
-    private void dumpRequest( final String key, final String s )
+    private void assertCurrentConfigMatches( List<String> oldConfig )
     {
-        final File file = new File(REQ_DUMP_FOLDER.toFile(), key + ".json");
-        try( PrintWriter writer = new PrintWriter(file) ) {
-            writer.write(s);
+        if( oldConfig == null ) {
+            return;
         }
-        catch( Exception e ) {
-            throw new RuntimeException(e);
+        List<String> currentConfig = getConfigLines();
+        String[] names = { "HCP", "cost center", "erp expense input" };
+        for( int i = 0; i < names.length; i++ ) {
+            if( !oldConfig.get(i).equals(currentConfig.get(i)) ) {
+                logger.error("Your " + names[i] + " config has changed, the old config was: " + oldConfig.get(i));
+                logger.error("Either revert to the previous config or remove the 'requests' folder");
+                System.exit(1);
+            }
         }
     }
 
-    private void dumpResponse( final String key, final HttpResponse response )
+    /**
+     * Reads the expenses from the payload of a batch
+     */
+    private static List<Expense> parseBatch( byte[] payload )
+        throws IOException
     {
-        final File file =
-            new File(REQ_DUMP_FOLDER.toFile(), key + "_" + response.getStatusLine().getStatusCode() + ".json");
-        try( PrintWriter writer = new PrintWriter(file) ) {
-            String responseString = getBodyFromResponse(response);
-
-            JsonParser parser = new JsonParser();
-            JsonObject json = parser.parse(responseString).getAsJsonObject();
-            writer.write(new GsonBuilder().setPrettyPrinting().create().toJson(json));
+        List<Expense> expenses = new ArrayList<>();
+        TypeAdapter<Expense> adapter = GSON.getAdapter(Expense.class);
+        try( JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload),
+            StandardCharsets.UTF_8)) ) {
+            reader.beginObject();
+            while( reader.hasNext() ) {
+                if( reader.nextName().equals("expenses") ) {
+                    reader.beginArray();
+                    while( reader.hasNext() ) {
+                        expenses.add(adapter.read(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
         }
-        catch( Exception e ) {
-            throw new RuntimeException(e);
+        return expenses;
+    }
+
+    /**
+     * Streams the payload of one batch into a byte array, without building a JSON tree or string of it first
+     */
+    private static byte[] serializeBatch( final List<Expense> expenses, final String user )
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * expenses.size());
+        try( JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(bytes,
+            StandardCharsets.UTF_8))) ) {
+            writer.beginObject();
+            writer.name("expenses");
+            writer.beginArray();
+            for( Expense expense : expenses ) {
+                GSON.toJson(expense, Expense.class, writer);
+            }
+            writer.endArray();
+            writer.name("user").value(user);
+            writer.endObject();
         }
+        return bytes.toByteArray();
     }
 }
@@ -2,9 +2,15 @@ package com.sap.expenseuploader.expenses.output;
 
 import com.sap.expenseuploader.model.Expense;
 
+import java.util.Iterator;
 import java.util.List;
 
 public interface ExpenseOutput
 {
     void putExpenses( List<Expense> expenses );
+
+    /**
+     * Writes the expenses while they are still being read, the iterator may block until the next one arrives
+     */
+    void putExpenses( Iterator<Expense> expenses );
 }
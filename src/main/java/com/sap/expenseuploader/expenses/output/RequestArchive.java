@@ -0,0 +1,245 @@
+package com.sap.expenseuploader.expenses.output;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores request and response bodies compressed in a few large segment files instead of one file per body.
+ * Each body is appended as a separate gzip member, so it can be read again from its segment, offset and
+ * length alone; the upload journal holds these locations. A segment file as a whole is a valid gzip file,
+ * e.g. {@code zcat segment-00001.gz} shows all bodies of the segment.
+ * <p>
+ * Appends go to a new segment once the current one is larger than the segment size. After a restart the
+ * appends always start in a new segment, so an incomplete body at the end of an old segment is never continued.
+ * <p>
+ * An archive opened read-only doesn't create or modify any file, so it can be read while an upload appends to it.
+ */
+public class RequestArchive implements Closeable
+{
+    private static final Logger logger = LogManager.getLogger(RequestArchive.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The location of one body in the archive
+     */
+    public static class Entry
+    {
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        public Entry( int segment, long offset, int length )
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getSegment()
+        {
+            return this.segment;
+        }
+
+        public long getOffset()
+        {
+            return this.offset;
+        }
+
+        /**
+         * @return the compressed length
+         */
+        public int getLength()
+        {
+            return this.length;
+        }
+    }
+
+    private final Path folder;
+    private final long segmentSize;
+    private final boolean readOnly;
+
+    private int segment;
+    private FileChannel current;
+    private long currentSize;
+
+    // Segment number -> channel, for reading
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+
+    public RequestArchive( Path folder, long segmentSize )
+        throws IOException
+    {
+        this(folder, segmentSize, false);
+    }
+
+    /**
+     * @param folder
+     * @param segmentSize bytes after which a new segment is started
+     * @param readOnly true if bodies are only read
+     */
+    public RequestArchive( Path folder, long segmentSize, boolean readOnly )
+        throws IOException
+    {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.readOnly = readOnly;
+        if( readOnly ) {
+            this.segment = 0;
+            return;
+        }
+        Files.createDirectories(folder);
+        // Continue after the last existing segment
+        int last = 0;
+        String[] names = folder.toFile().list();
+        if( names != null ) {
+            for( String name : names ) {
+                if( name.startsWith("segment-") && name.endsWith(".gz") ) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(name.substring(8, name.length() - 3)));
+                    }
+                    catch( NumberFormatException e ) {
+                        // Not one of our segments
+                    }
+                }
+            }
+        }
+        this.segment = last;
+    }
+
+    public static Path getSegmentFile( Path folder, int segment )
+    {
+        return folder.resolve(String.format("segment-%05d.gz", segment));
+    }
+
+    /**
+     * Compresses the body and appends it to the current segment. The body is not forced to disk, see
+     * {@link #force()}.
+     *
+     * @return the location of the body
+     */
+    public Entry append( byte[] body )
+        throws IOException
+    {
+        if( this.readOnly ) {
+            throw new IOException("The request archive in " + this.folder + " is opened read-only");
+        }
+        // Compress outside of the lock, so that several threads can compress at the same time
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try( GZIPOutputStream out = new GZIPOutputStream(compressed) ) {
+            out.write(body);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(compressed.toByteArray());
+
+        synchronized( this ) {
+            if( this.current == null || this.currentSize >= this.segmentSize ) {
+                roll();
+            }
+            long offset = this.currentSize;
+            while( buffer.hasRemaining() ) {
+                this.current.write(buffer, offset + buffer.position());
+            }
+            this.currentSize += buffer.limit();
+            return new Entry(this.segment, offset, buffer.limit());
+        }
+    }
+
+    private void roll()
+        throws IOException
+    {
+        if( this.current != null ) {
+            // The old segment may hold bodies which are not forced yet
+            this.current.force(false);
+            this.current.close();
+        }
+        this.segment++;
+        Path file = getSegmentFile(this.folder, this.segment);
+        this.current = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.currentSize = 0;
+        logger.debug("Archiving requests in " + file);
+    }
+
+    /**
+     * Forces all appended bodies to disk
+     */
+    public void force()
+        throws IOException
+    {
+        FileChannel channel;
+        synchronized( this ) {
+            channel = this.current;
+        }
+        try {
+            if( channel != null ) {
+                channel.force(false);
+            }
+        }
+        catch( ClosedChannelException e ) {
+            // The segment was rolled in the meantime, which forces it
+        }
+    }
+
+    /**
+     * Reads and decompresses one body, can be called by several threads at once
+     */
+    public byte[] read( Entry entry )
+        throws IOException
+    {
+        ByteBuffer compressed = ByteBuffer.allocate(entry.length);
+        FileChannel channel = getReader(entry.segment);
+        while( compressed.hasRemaining() ) {
+            if( channel.read(compressed, entry.offset + compressed.position()) < 0 ) {
+                throw new EOFException("Segment " + entry.segment + " ends before the archived body");
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(entry.length * 4);
+        try( InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array())) ) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while( (read = in.read(buffer)) > 0 ) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private synchronized FileChannel getReader( int segment )
+        throws IOException
+    {
+        FileChannel reader = this.readers.get(segment);
+        if( reader == null ) {
+            reader = FileChannel.open(getSegmentFile(this.folder, segment), StandardOpenOption.READ);
+            this.readers.put(segment, reader);
+        }
+        return reader;
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        try {
+            if( this.current != null ) {
+                this.current.force(false);
+                this.current.close();
+            }
+        }
+        finally {
+            for( FileChannel reader : this.readers.values() ) {
+                reader.close();
+            }
+            this.readers.clear();
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package com.sap.expenseuploader.expenses.output;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the expense batches of an upload run, which allows to resume exactly the
+ * batches which have not been acknowledged by HCP, also after a crash.
+ * <p>
+ * The payloads of the batches and the responses are stored compressed in a {@link RequestArchive}. The journal
+ * file holds the config of the run, one record per batch (user, payload location and checksum) and one record
+ * per upload response, so it is also the index of the archive. Every record carries a checksum, a torn record
+ * at the end of the journal is dropped when it is opened again.
+ * <p>
+ * A batch is committed before it is uploaded: its payload and its record are forced to disk first. Threads
+ * which commit at the same time share one forced write. Responses are not forced, if they get lost in a crash
+ * the batch is simply uploaded again on resume.
+ * <p>
+ * A journal opened with {@link #openReadOnly(Path)} is only read, so it can be inspected while an upload is
+ * running.
+ */
+public class UploadJournal implements Closeable
+{
+    private static final Logger logger = LogManager.getLogger(UploadJournal.class);
+
+    public static final String JOURNAL_FILE = "journal.log";
+
+    private static final byte CONFIG_RECORD = 1;
+    private static final byte BATCH_RECORD = 2;
+    private static final byte RESPONSE_RECORD = 3;
+
+    // Length and checksum of a record
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final FileChannel journal;
+    private final RequestArchive archive;
+    private final boolean readOnly;
+
+    // Batch ID -> batch, in the order of the batch IDs
+    private final Map<Long, Batch> batches = new TreeMap<>();
+    private List<String> config;
+    private long lastBatchId = 0;
+
+    // End of the journal and end of the part which is forced to disk
+    private long journalEnd;
+    private volatile long synced;
+    private final Object syncLock = new Object();
+
+    /**
+     * One batch of expenses of one user, as it is stored in the journal
+     */
+    public static class Batch
+    {
+        private final long id;
+        private final String user;
+        private final int expenseCount;
+        private final RequestArchive.Entry payload;
+        private final int payloadChecksum;
+        private volatile int statusCode = 0; // 0 means no response yet
+        private volatile RequestArchive.Entry response;
+
+        Batch( long id, String user, int expenseCount, RequestArchive.Entry payload, int payloadChecksum )
+        {
+            this.id = id;
+            this.user = user;
+            this.expenseCount = expenseCount;
+            this.payload = payload;
+            this.payloadChecksum = payloadChecksum;
+        }
+
+        public long getId()
+        {
+            return this.id;
+        }
+
+        public String getUser()
+        {
+            return this.user;
+        }
+
+        public int getExpenseCount()
+        {
+            return this.expenseCount;
+        }
+
+        /**
+         * @return the HTTP status code of the last upload, or 0 if there was no response
+         */
+        public int getStatusCode()
+        {
+            return this.statusCode;
+        }
+
+        public boolean isAcknowledged()
+        {
+            return this.statusCode == 200;
+        }
+
+        /**
+         * @return true if the body of the last response is archived
+         */
+        public boolean hasResponse()
+        {
+            return this.response != null;
+        }
+    }
+
+    private UploadJournal( FileChannel journal, RequestArchive archive, boolean readOnly )
+    {
+        this.journal = journal;
+        this.archive = archive;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Opens the journal in the given folder and reads its records, or creates an empty journal
+     *
+     * @param folder
+     * @return
+     * @throws IOException
+     */
+    public static UploadJournal open( Path folder )
+        throws IOException
+    {
+        return open(folder, RequestArchive.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param folder
+     * @param segmentSize bytes after which a new archive segment is started
+     */
+    public static UploadJournal open( Path folder, long segmentSize )
+        throws IOException
+    {
+        Files.createDirectories(folder);
+        return replayOrClose(new UploadJournal(FileChannel.open(folder.resolve(JOURNAL_FILE),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE), new RequestArchive(folder, segmentSize), false));
+    }
+
+    /**
+     * Opens an existing journal only for reading. Neither the journal nor the archive are modified, an incomplete
+     * record at the end, e.g. one which is being written right now, is ignored.
+     */
+    public static UploadJournal openReadOnly( Path folder )
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open(folder.resolve(JOURNAL_FILE), StandardOpenOption.READ);
+        return replayOrClose(new UploadJournal(channel,
+            new RequestArchive(folder, RequestArchive.DEFAULT_SEGMENT_SIZE, true),
+            true));
+    }
+
+    private static UploadJournal replayOrClose( UploadJournal journal )
+        throws IOException
+    {
+        try {
+            journal.replay();
+        }
+        catch( IOException e ) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    public static boolean exists( Path folder )
+    {
+        return Files.exists(folder.resolve(JOURNAL_FILE));
+    }
+
+    /**
+     * Reads all complete records and drops a torn record at the end
+     */
+    private void replay()
+        throws IOException
+    {
+        long size = this.journal.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while( position + RECORD_HEADER_SIZE <= size ) {
+            header.clear();
+            readFully(this.journal, header, position);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if( length <= 0 || position + RECORD_HEADER_SIZE + length > size ) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(this.journal, body, position + RECORD_HEADER_SIZE);
+            if( checksum(body.array()) != checksum ) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(body.array())));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if( position < size && !this.readOnly ) {
+            logger.warn(String.format("Dropping %s byte(s) of an incomplete record at the end of the upload journal",
+                size - position));
+            this.journal.truncate(position);
+        }
+        this.journalEnd = position;
+        this.synced = position;
+    }
+
+    private void apply( DataInputStream record )
+        throws IOException
+    {
+        byte type = record.readByte();
+        switch( type ) {
+            case CONFIG_RECORD:
+                int lines = record.readInt();
+                this.config = new ArrayList<>(lines);
+                for( int i = 0; i < lines; i++ ) {
+                    this.config.add(readString(record));
+                }
+                break;
+            case BATCH_RECORD:
+                Batch batch = new Batch(record.readLong(),
+                    readString(record),
+                    record.readInt(),
+                    readEntry(record),
+                    record.readInt());
+                this.batches.put(batch.id, batch);
+                this.lastBatchId = Math.max(this.lastBatchId, batch.id);
+                break;
+            case RESPONSE_RECORD:
+                long batchId = record.readLong();
+                int statusCode = record.readInt();
+                RequestArchive.Entry response = record.readBoolean() ? readEntry(record) : null;
+                if( this.batches.containsKey(batchId) ) {
+                    this.batches.get(batchId).statusCode = statusCode;
+                    this.batches.get(batchId).response = response;
+                }
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " in the upload journal");
+        }
+    }
+
+    /**
+     * Strings are stored as length and UTF-8 bytes, {@link DataOutputStream#writeUTF(String)} is limited to
+     * 64 KB and the config lines can be longer
+     */
+    private static String readString( DataInputStream record )
+        throws IOException
+    {
+        byte[] bytes = new byte[record.readInt()];
+        record.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString( DataOutputStream record, String value )
+        throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    private static RequestArchive.Entry readEntry( DataInputStream record )
+        throws IOException
+    {
+        return new RequestArchive.Entry(record.readInt(), record.readLong(), record.readInt());
+    }
+
+    private static void writeEntry( DataOutputStream record, RequestArchive.Entry entry )
+        throws IOException
+    {
+        record.writeInt(entry.getSegment());
+        record.writeLong(entry.getOffset());
+        record.writeInt(entry.getLength());
+    }
+
+    /**
+     * @return the config lines of the journaled run, or null if they were not written yet
+     */
+    public synchronized List<String> getConfig()
+    {
+        return this.config;
+    }
+
+    /**
+     * Remembers the config of the run, to check on resume that the config has not changed
+     */
+    public void writeConfig( List<String> config )
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(CONFIG_RECORD);
+        record.writeInt(config.size());
+        for( String line : config ) {
+            writeString(record, line);
+        }
+        long end;
+        synchronized( this ) {
+            this.config = new ArrayList<>(config);
+            end = append(bytes.toByteArray());
+        }
+        sync(end);
+    }
+
+    /**
+     * @return all batches which were not uploaded successfully, in the order of their IDs
+     */
+    public synchronized List<Batch> getUnacknowledgedBatches()
+    {
+        List<Batch> result = new ArrayList<>();
+        for( Batch batch : this.batches.values() ) {
+            if( !batch.isAcknowledged() ) {
+                result.add(batch);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all batches, in the order of their IDs
+     */
+    public synchronized List<Batch> getBatches()
+    {
+        return new ArrayList<>(this.batches.values());
+    }
+
+    public synchronized int getBatchCount()
+    {
+        return this.batches.size();
+    }
+
+    /**
+     * Stores the payload of a new batch. When this method returns, the batch is on disk and can be uploaded.
+     *
+     * @param user
+     * @param expenseCount
+     * @param payload the request body
+     * @return the batch with a new, unique ID
+     * @throws IOException
+     */
+    public Batch commitBatch( String user, int expenseCount, byte[] payload )
+        throws IOException
+    {
+        RequestArchive.Entry entry = this.archive.append(payload);
+        Batch batch;
+        long end;
+        synchronized( this ) {
+            batch = new Batch(++this.lastBatchId, user, expenseCount, entry, checksum(payload));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(BATCH_RECORD);
+            record.writeLong(batch.id);
+            writeString(record, user);
+            record.writeInt(expenseCount);
+            writeEntry(record, entry);
+            record.writeInt(batch.payloadChecksum);
+            end = append(bytes.toByteArray());
+            this.batches.put(batch.id, batch);
+        }
+        sync(end);
+        return batch;
+    }
+
+    /**
+     * Records the HTTP status code and the raw body of a response to an upload of the batch.
+     * This is not forced to disk.
+     *
+     * @param batch
+     * @param statusCode
+     * @param body the response body, can be null
+     * @throws IOException
+     */
+    public void recordResponse( Batch batch, int statusCode, byte[] body )
+        throws IOException
+    {
+        RequestArchive.Entry entry = body == null ? null : this.archive.append(body);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(RESPONSE_RECORD);
+        record.writeLong(batch.id);
+        record.writeInt(statusCode);
+        record.writeBoolean(entry != null);
+        if( entry != null ) {
+            writeEntry(record, entry);
+        }
+        synchronized( this ) {
+            append(bytes.toByteArray());
+            batch.statusCode = statusCode;
+            batch.response = entry;
+        }
+    }
+
+    /**
+     * Reads the payload of a batch, can be called by several threads at once
+     *
+     * @throws IOException if the payload is damaged
+     */
+    public byte[] readPayload( Batch batch )
+        throws IOException
+    {
+        byte[] payload = this.archive.read(batch.payload);
+        if( checksum(payload) != batch.payloadChecksum ) {
+            throw new IOException("The payload of batch " + batch.id + " is damaged");
+        }
+        return payload;
+    }
+
+    /**
+     * Reads the body of the last response to the batch
+     *
+     * @return the body, or null if it is not archived
+     */
+    public byte[] readResponse( Batch batch )
+        throws IOException
+    {
+        RequestArchive.Entry response = batch.response;
+        return response == null ? null : this.archive.read(response);
+    }
+
+    /**
+     * Appends a record to the journal
+     *
+     * @return the end position of the record in the journal
+     */
+    private long append( byte[] body )
+        throws IOException
+    {
+        if( this.readOnly ) {
+            throw new IOException("The upload journal is opened read-only");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+        record.putInt(body.length);
+        record.putInt(checksum(body));
+        record.put(body);
+        record.flip();
+        writeFully(this.journal, record, this.journalEnd);
+        this.journalEnd += record.limit();
+        return this.journalEnd;
+    }
+
+    /**
+     * Forces the journal to disk up to the given position. Other threads waiting at the same time
+     * find their records already forced and don't need to force the files again.
+     */
+    private void sync( long position )
+        throws IOException
+    {
+        synchronized( this.syncLock ) {
+            if( this.synced >= position ) {
+                return;
+            }
+            long end;
+            synchronized( this ) {
+                end = this.journalEnd;
+            }
+            // The payloads first, so that a batch record never points to a payload which is not on disk
+            this.archive.force();
+            this.journal.force(false);
+            this.synced = end;
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        try {
+            if( this.journal.isOpen() && !this.readOnly ) {
+                long end;
+                synchronized( this ) {
+                    end = this.journalEnd;
+                }
+                sync(end);
+            }
+        }
+        finally {
+            this.journal.close();
+            this.archive.close();
+        }
+    }
+
+    private static int checksum( byte[] bytes )
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer buffer, long position )
+        throws IOException
+    {
+        while( buffer.hasRemaining() ) {
+            int read = channel.read(buffer, position + buffer.position());
+            if( read < 0 ) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buffer, long position )
+        throws IOException
+    {
+        while( buffer.hasRemaining() ) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
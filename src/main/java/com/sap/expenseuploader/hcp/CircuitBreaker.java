@@ -0,0 +1,102 @@
+package com.sap.expenseuploader.hcp;
+
+import com.sap.expenseuploader.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Pauses all requests to HCP while the backend is overloaded or down, instead of letting every upload
+ * thread retry on its own. After a number of consecutive failures the breaker opens and all threads wait.
+ * When the pause is over, a single request is let through as probe: if it succeeds, all threads continue,
+ * otherwise the breaker opens again.
+ * <p>
+ * This class is thread-safe, it is shared by all upload threads.
+ */
+public class CircuitBreaker
+{
+    private static final Logger logger = LogManager.getLogger(CircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean probing = false;
+    private int openCount = 0;
+
+    public CircuitBreaker()
+    {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    public CircuitBreaker( int failureThreshold, long openMillis )
+    {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    private boolean isOpen()
+    {
+        return this.consecutiveFailures >= this.failureThreshold;
+    }
+
+    /**
+     * Waits until a request may be sent
+     */
+    public synchronized void awaitPermission()
+        throws InterruptedException
+    {
+        while( isOpen() ) {
+            long remaining = this.openUntil - System.currentTimeMillis();
+            if( remaining > 0 ) {
+                wait(remaining);
+            } else if( !this.probing ) {
+                // This request probes whether the backend is back
+                this.probing = true;
+                return;
+            } else {
+                // Wait for the result of the probe
+                wait(this.openMillis);
+            }
+        }
+    }
+
+    public synchronized void onSuccess()
+    {
+        if( isOpen() ) {
+            logger.info("HCP responds again, resuming all requests");
+        }
+        this.consecutiveFailures = 0;
+        this.probing = false;
+        notifyAll();
+    }
+
+    /**
+     * @param pauseMillis the pause requested by the backend, e.g. with Retry-After, or 0
+     */
+    public synchronized void onFailure( long pauseMillis )
+    {
+        this.consecutiveFailures++;
+        if( isOpen() && (this.probing || this.openUntil <= System.currentTimeMillis()) ) {
+            long pause = Math.max(this.openMillis, pauseMillis);
+            this.openUntil = System.currentTimeMillis() + pause;
+            this.openCount++;
+            Metrics.counter("http_circuit_breaker_opened_total").increment();
+            logger.warn(String.format("HCP seems to be overloaded or down, pausing all requests for %.1f second(s)",
+                pause / 1000.0));
+        }
+        this.probing = false;
+        notifyAll();
+    }
+
+    /**
+     * @return how often the breaker has opened
+     */
+    public synchronized int getOpenCount()
+    {
+        return this.openCount;
+    }
+}
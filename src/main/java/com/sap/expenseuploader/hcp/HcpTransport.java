@@ -0,0 +1,181 @@
+package com.sap.expenseuploader.hcp;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends all requests to HCP over one pool of keep-alive connections. A single instance is shared
+ * by all HCP outputs and all of their upload threads, so TCP and TLS handshakes (also through the
+ * proxy) are only done once per pooled connection instead of once per request.
+ */
+public class HcpTransport implements Closeable
+{
+    private static final Logger logger = LogManager.getLogger(HcpTransport.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_SOCKET_TIMEOUT_SECONDS = 300;
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Executor executor;
+    private final boolean compressRequests;
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param maxConnectionsPerRoute maximum number of pooled connections to one host
+     * @param connectTimeoutSeconds timeout for establishing a connection
+     * @param socketTimeoutSeconds timeout while waiting for data of a response
+     * @param keepAliveSeconds how long idle connections are kept if the server doesn't say otherwise
+     * @param proxy proxy server, e.g. example.com:8080 (can be null)
+     * @param compressRequests gzip the bodies of requests
+     * @param cookieStore cookies shared by all requests, e.g. for the session of the CSRF token
+     */
+    public HcpTransport( int maxConnectionsPerRoute, int connectTimeoutSeconds, int socketTimeoutSeconds,
+        final int keepAliveSeconds, String proxy, boolean compressRequests, CookieStore cookieStore )
+    {
+        this(maxConnectionsPerRoute,
+            connectTimeoutSeconds,
+            socketTimeoutSeconds,
+            keepAliveSeconds,
+            proxy,
+            compressRequests,
+            cookieStore,
+            null);
+    }
+
+    /**
+     * @param rateLimiter limits all requests sent by this transport (can be null), it is closed with the transport
+     */
+    public HcpTransport( int maxConnectionsPerRoute, int connectTimeoutSeconds, int socketTimeoutSeconds,
+        final int keepAliveSeconds, String proxy, boolean compressRequests, CookieStore cookieStore,
+        RateLimiter rateLimiter )
+    {
+        this.compressRequests = compressRequests;
+        this.rateLimiter = rateLimiter;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        this.connectionManager.setMaxTotal(maxConnectionsPerRoute);
+        // Check pooled connections that were idle for a while before they are reused
+        this.connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutSeconds * 1000)
+            .setConnectionRequestTimeout(connectTimeoutSeconds * 1000)
+            .setSocketTimeout(socketTimeoutSeconds * 1000)
+            .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+            .setConnectionManager(this.connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setDefaultCookieStore(cookieStore)
+            .setKeepAliveStrategy(new ConnectionKeepAliveStrategy()
+            {
+                @Override
+                public long getKeepAliveDuration( HttpResponse response, HttpContext context )
+                {
+                    // Honor the keep-alive timeout of the server, if there is one
+                    HeaderElementIterator it =
+                        new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                    while( it.hasNext() ) {
+                        HeaderElement element = it.nextElement();
+                        if( element.getValue() != null && "timeout".equalsIgnoreCase(element.getName()) ) {
+                            try {
+                                return Long.parseLong(element.getValue()) * 1000;
+                            }
+                            catch( NumberFormatException e ) {
+                                // Ignore and use the default
+                            }
+                        }
+                    }
+                    return keepAliveSeconds * 1000L;
+                }
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAliveSeconds, TimeUnit.SECONDS);
+        if( proxy != null && !proxy.isEmpty() ) {
+            builder.setProxy(HttpHost.create(proxy));
+        }
+        if( rateLimiter != null ) {
+            // Last, so that the bodies are counted as they are sent
+            builder.addInterceptorLast(rateLimiter);
+        }
+        // After the rate limiter, so that waiting for the request rate doesn't count as latency. The wait of the
+        // bytes per second limit happens while the body is sent, which HttpMetrics doesn't count either.
+        HttpMetrics httpMetrics = new HttpMetrics();
+        builder.addInterceptorLast((HttpRequestInterceptor) httpMetrics);
+        builder.addInterceptorLast((HttpResponseInterceptor) httpMetrics);
+        this.httpClient = builder.build();
+        this.executor = Executor.newInstance(this.httpClient);
+
+        logger.debug(String.format(
+            "Using at most %s connection(s) per host, timeouts %ss/%ss, keep-alive %ss, proxy %s, compression %s",
+            maxConnectionsPerRoute,
+            connectTimeoutSeconds,
+            socketTimeoutSeconds,
+            keepAliveSeconds,
+            proxy,
+            compressRequests));
+    }
+
+    public Response execute( Request request )
+        throws IOException
+    {
+        return this.executor.execute(request);
+    }
+
+    /**
+     * Sets the given JSON as body of the request, compressed if configured
+     */
+    public Request withJsonBody( Request request, String json )
+    {
+        return request.body(maybeCompress(new StringEntity(json, ContentType.APPLICATION_JSON)));
+    }
+
+    public HttpEntity maybeCompress( HttpEntity entity )
+    {
+        if( !this.compressRequests ) {
+            return entity;
+        }
+        return new GzipCompressingEntity(entity);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        this.httpClient.close();
+        this.connectionManager.shutdown();
+        if( this.rateLimiter != null ) {
+            this.rateLimiter.close();
+        }
+    }
+}
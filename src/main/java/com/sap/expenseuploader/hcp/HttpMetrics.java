@@ -0,0 +1,130 @@
+package com.sap.expenseuploader.hcp;
+
+import com.sap.expenseuploader.metrics.Counter;
+import com.sap.expenseuploader.metrics.Metrics;
+import org.apache.http.*;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.regex.Pattern;
+
+/**
+ * Records the latency, response codes and sent bytes of all requests to HCP per endpoint,
+ * e.g. /rest/expense or /rest/budget/dimension/{id}
+ * <p>
+ * The latency of a request with a body is measured from the end of the body to the response, so that neither
+ * the bytes per second limit of the rate limiter nor a slow network upload count as latency of HCP.
+ */
+public class HttpMetrics implements HttpRequestInterceptor, HttpResponseInterceptor
+{
+    private static final String START_ATTRIBUTE = HttpMetrics.class.getName() + ".start";
+    private static final String ENDPOINT_ATTRIBUTE = HttpMetrics.class.getName() + ".endpoint";
+    private static final Pattern ID_SEGMENT = Pattern.compile("/\\d+(?=/|$)");
+
+    @Override
+    public void process( HttpRequest request, HttpContext context )
+        throws HttpException, IOException
+    {
+        String endpoint = getEndpoint(request.getRequestLine().getUri());
+        context.setAttribute(ENDPOINT_ATTRIBUTE, endpoint);
+        context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        Metrics.counter("http_requests_total", "endpoint", endpoint).increment();
+
+        if( request instanceof HttpEntityEnclosingRequest ) {
+            HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+            if( enclosingRequest.getEntity() != null ) {
+                enclosingRequest.setEntity(new CountingEntity(enclosingRequest.getEntity(),
+                    Metrics.counter("http_sent_bytes_total", "endpoint", endpoint),
+                    context));
+            }
+        }
+    }
+
+    @Override
+    public void process( HttpResponse response, HttpContext context )
+        throws HttpException, IOException
+    {
+        Object start = context.getAttribute(START_ATTRIBUTE);
+        Object endpoint = context.getAttribute(ENDPOINT_ATTRIBUTE);
+        if( start == null || endpoint == null ) {
+            return;
+        }
+        Metrics.histogram("http_request_seconds", "endpoint", (String) endpoint).observeSince((Long) start);
+        Metrics.counter("http_responses_total",
+            "endpoint",
+            (String) endpoint,
+            "status",
+            String.valueOf(response.getStatusLine().getStatusCode())).increment();
+    }
+
+    /**
+     * Reduces the URI to the path from /rest on, with IDs replaced, so that the number of endpoints is small
+     */
+    static String getEndpoint( String uri )
+    {
+        String path;
+        try {
+            path = URI.create(uri).getPath();
+        }
+        catch( IllegalArgumentException e ) {
+            return "unknown";
+        }
+        if( path == null ) {
+            return "unknown";
+        }
+        int rest = path.indexOf("/rest/");
+        if( rest >= 0 ) {
+            path = path.substring(rest);
+        }
+        if( path.length() > 1 && path.endsWith("/") ) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return ID_SEGMENT.matcher(path).replaceAll("/{id}");
+    }
+
+    /**
+     * Counts the bytes while the body is sent, i.e. after compression, and restarts the latency measurement when
+     * the body is sent completely
+     */
+    private static class CountingEntity extends HttpEntityWrapper
+    {
+        private final Counter counter;
+        private final HttpContext context;
+
+        CountingEntity( HttpEntity entity, Counter counter, HttpContext context )
+        {
+            super(entity);
+            this.counter = counter;
+            this.context = context;
+        }
+
+        @Override
+        public void writeTo( final OutputStream out )
+            throws IOException
+        {
+            super.writeTo(new FilterOutputStream(out)
+            {
+                @Override
+                public void write( int b )
+                    throws IOException
+                {
+                    out.write(b);
+                    counter.increment();
+                }
+
+                @Override
+                public void write( byte[] b, int off, int len )
+                    throws IOException
+                {
+                    out.write(b, off, len);
+                    counter.add(len);
+                }
+            });
+            this.context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+    }
+}
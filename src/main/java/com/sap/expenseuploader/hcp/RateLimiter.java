@@ -0,0 +1,116 @@
+package com.sap.expenseuploader.hcp;
+
+import org.apache.http.*;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Limits the requests per second and the bytes per second sent to HCP. It is installed as interceptor
+ * of the HTTP client, so every request is limited, including retries and CSRF token fetches. The bytes
+ * are counted while the body is written, i.e. after compression.
+ * <p>
+ * With a lock file, all uploader processes using the same file share the limits.
+ */
+public class RateLimiter implements HttpRequestInterceptor, Closeable
+{
+    private static final Logger logger = LogManager.getLogger(RateLimiter.class);
+
+    // Bytes are taken from the bucket in chunks of at most this size
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final TokenBucket requests; // Can be null
+    private final TokenBucket bytes; // Can be null
+    private final FileChannel lockFile; // Can be null
+
+    /**
+     * @param requestsPerSecond maximum requests per second, 0 means unlimited
+     * @param bytesPerSecond maximum bytes per second, 0 means unlimited
+     * @param lockFile file to share the limits with other processes, or null
+     */
+    public RateLimiter( double requestsPerSecond, long bytesPerSecond, File lockFile )
+        throws IOException
+    {
+        this.lockFile = lockFile == null
+            ? null
+            : FileChannel.open(lockFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.requests = requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, this.lockFile, 0) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, this.lockFile, 1) : null;
+        logger.info(String.format("Limiting requests to HCP to %s request(s)/s and %s byte(s)/s%s",
+            requestsPerSecond > 0 ? requestsPerSecond : "unlimited",
+            bytesPerSecond > 0 ? bytesPerSecond : "unlimited",
+            lockFile == null ? "" : ", shared via " + lockFile.getAbsolutePath()));
+    }
+
+    @Override
+    public void process( HttpRequest request, HttpContext context )
+        throws HttpException, IOException
+    {
+        if( this.requests != null ) {
+            this.requests.acquire(1);
+        }
+        if( this.bytes != null && request instanceof HttpEntityEnclosingRequest ) {
+            HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+            if( enclosingRequest.getEntity() != null ) {
+                enclosingRequest.setEntity(new ThrottledEntity(enclosingRequest.getEntity()));
+            }
+        }
+    }
+
+    /**
+     * Takes the written bytes from the byte bucket
+     */
+    private class ThrottledEntity extends HttpEntityWrapper
+    {
+        ThrottledEntity( HttpEntity entity )
+        {
+            super(entity);
+        }
+
+        @Override
+        public void writeTo( final OutputStream out )
+            throws IOException
+        {
+            super.writeTo(new FilterOutputStream(out)
+            {
+                @Override
+                public void write( int b )
+                    throws IOException
+                {
+                    bytes.acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write( byte[] b, int off, int len )
+                    throws IOException
+                {
+                    while( len > 0 ) {
+                        int chunk = Math.min(len, CHUNK_SIZE);
+                        bytes.acquire(chunk);
+                        out.write(b, off, chunk);
+                        off += chunk;
+                        len -= chunk;
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if( this.lockFile != null ) {
+            this.lockFile.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.sap.expenseuploader.hcp;
+
+import java.io.IOException;
+
+/**
+ * Signals that a request to HCP failed before it was sent, e.g. because no CSRF token could be fetched for it.
+ * HCP can't have processed such a request, so it may be retried even if it is not idempotent.
+ */
+public class RequestNotSentException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public RequestNotSentException( String message )
+    {
+        super(message);
+    }
+
+    public RequestNotSentException( String message, Throwable cause )
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,126 @@
+package com.sap.expenseuploader.hcp;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Decides whether a failed HCP request is sent again and how long to wait before. The delays grow
+ * exponentially with random jitter, so that parallel upload threads don't retry at the same moment.
+ * A Retry-After header of the response takes precedence.
+ * <p>
+ * Requests which are not idempotent (the POST of expenses) are only retried if HCP has certainly not processed
+ * them: if no connection could be established, if the request failed before it was sent (e.g. while fetching the
+ * CSRF token), or if HCP rejected the request as overloaded (429, 503). After a timeout or a gateway error the
+ * request may have been processed, so it is left to the resume of the upload.
+ */
+public class RetryPolicy
+{
+    public static final int DEFAULT_MAX_RETRIES = 4;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60 * 1000;
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    public RetryPolicy()
+    {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public RetryPolicy( int maxRetries, long baseDelayMillis, long maxDelayMillis )
+    {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxRetries()
+    {
+        return this.maxRetries;
+    }
+
+    /**
+     * @return true if the status code means that the backend is temporarily unavailable or overloaded
+     */
+    public static boolean isRetryableStatus( int statusCode )
+    {
+        return statusCode == 408 || statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * @param statusCode
+     * @param idempotent false if sending the request twice may have a different effect than sending it once
+     * @return true if a request with this response may be sent again
+     */
+    public static boolean isRetryableStatus( int statusCode, boolean idempotent )
+    {
+        if( idempotent ) {
+            return isRetryableStatus(statusCode);
+        }
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * @param e the exception of a request without response
+     * @param idempotent false if sending the request twice may have a different effect than sending it once
+     * @return true if the request may be sent again
+     */
+    public static boolean isRetryable( IOException e, boolean idempotent )
+    {
+        return idempotent || e instanceof RequestNotSentException || e instanceof ConnectException
+            || e instanceof ConnectTimeoutException || e instanceof UnknownHostException;
+    }
+
+    /**
+     * @param retry the number of the retry, starting with 1
+     * @param response the failed response, or null if there was none
+     * @return the time to wait before the retry
+     */
+    public long getDelayMillis( int retry, HttpResponse response )
+    {
+        long retryAfter = getRetryAfterMillis(response);
+        if( retryAfter >= 0 ) {
+            return Math.min(retryAfter, this.maxDelayMillis);
+        }
+        // Half of the exponentially growing limit plus a random part of the other half
+        long limit = Math.min(this.maxDelayMillis, this.baseDelayMillis << Math.min(retry - 1, 20));
+        return limit / 2 + (long) (this.random.nextDouble() * (limit / 2));
+    }
+
+    /**
+     * Reads the Retry-After header, given either in seconds or as HTTP date
+     *
+     * @return the delay, or -1 if there is no valid header
+     */
+    public static long getRetryAfterMillis( HttpResponse response )
+    {
+        if( response == null ) {
+            return -1;
+        }
+        Header header = response.getFirstHeader("Retry-After");
+        if( header == null || header.getValue() == null ) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch( NumberFormatException e ) {
+            Date date = DateUtils.parseDate(value);
+            if( date == null ) {
+                return -1;
+            }
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
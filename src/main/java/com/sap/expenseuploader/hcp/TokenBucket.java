@@ -0,0 +1,117 @@
+package com.sap.expenseuploader.hcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * A token bucket which refills with a fixed rate per second and holds at most one second of tokens.
+ * Taking more tokens than available is allowed, the caller then waits until the debt is paid back,
+ * so large requests are not starved by small ones.
+ * <p>
+ * The state of the bucket can be kept in a region of a shared file instead of in memory. The region is
+ * locked for each update, so several uploader processes on the same machine share the bucket.
+ */
+public class TokenBucket
+{
+    // Tokens and time of the last refill
+    private static final int STATE_SIZE = 16;
+
+    private final double ratePerSecond;
+    private final double capacity;
+    private final FileChannel sharedFile; // Can be null
+    private final long slotPosition;
+
+    private double tokens;
+    private long lastRefillMillis;
+
+    public TokenBucket( double ratePerSecond )
+    {
+        this(ratePerSecond, null, 0);
+    }
+
+    /**
+     * @param ratePerSecond
+     * @param sharedFile file with the state shared across processes, or null
+     * @param slot the region of the file, for several buckets in one file
+     */
+    public TokenBucket( double ratePerSecond, FileChannel sharedFile, int slot )
+    {
+        if( ratePerSecond <= 0 ) {
+            throw new IllegalArgumentException("The rate has to be positive, but is " + ratePerSecond);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(1, ratePerSecond);
+        this.sharedFile = sharedFile;
+        this.slotPosition = (long) slot * STATE_SIZE;
+        this.tokens = this.capacity;
+        this.lastRefillMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes the tokens and waits as long as the bucket is in debt
+     */
+    public void acquire( long permits )
+        throws IOException
+    {
+        long waitMillis = take(permits);
+        if( waitMillis > 0 ) {
+            try {
+                Thread.sleep(waitMillis);
+            }
+            catch( InterruptedException e ) {
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait until the tokens are available
+     */
+    private synchronized long take( long permits )
+        throws IOException
+    {
+        if( this.sharedFile == null ) {
+            return update(permits);
+        }
+        FileLock lock = this.sharedFile.lock(this.slotPosition, STATE_SIZE, false);
+        try {
+            ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+            while( state.hasRemaining() ) {
+                if( this.sharedFile.read(state, this.slotPosition + state.position()) < 0 ) {
+                    break;
+                }
+            }
+            if( !state.hasRemaining() ) {
+                // Another process has written the state already
+                this.tokens = state.getDouble(0);
+                this.lastRefillMillis = state.getLong(8);
+            }
+            long waitMillis = update(permits);
+            state.clear();
+            state.putDouble(this.tokens).putLong(this.lastRefillMillis).flip();
+            while( state.hasRemaining() ) {
+                this.sharedFile.write(state, this.slotPosition + state.position());
+            }
+            return waitMillis;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    private long update( long permits )
+    {
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(0, now - this.lastRefillMillis);
+        this.tokens = Math.min(this.capacity, this.tokens + elapsed * this.ratePerSecond / 1000);
+        this.lastRefillMillis = now;
+        this.tokens -= permits;
+        if( this.tokens >= 0 ) {
+            return 0;
+        }
+        return (long) Math.ceil(-this.tokens * 1000 / this.ratePerSecond);
+    }
+}
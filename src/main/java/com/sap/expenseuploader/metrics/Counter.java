@@ -0,0 +1,26 @@
+package com.sap.expenseuploader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value which only grows, e.g. the number of sent bytes
+ */
+public class Counter
+{
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment()
+    {
+        this.value.incrementAndGet();
+    }
+
+    public void add( long delta )
+    {
+        this.value.addAndGet(delta);
+    }
+
+    public long get()
+    {
+        return this.value.get();
+    }
+}
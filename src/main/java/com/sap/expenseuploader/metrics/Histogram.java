@@ -0,0 +1,65 @@
+package com.sap.expenseuploader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations, counted in fixed buckets like a Prometheus histogram
+ */
+public class Histogram
+{
+    // Upper bounds of the buckets in seconds, the last bucket is unbounded
+    static final double[] BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void observeNanos( long nanos )
+    {
+        double seconds = nanos / 1e9;
+        int bucket = 0;
+        while( bucket < BUCKETS.length && seconds > BUCKETS[bucket] ) {
+            bucket++;
+        }
+        this.counts.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.sumNanos.addAndGet(nanos);
+        long max = this.maxNanos.get();
+        while( nanos > max && !this.maxNanos.compareAndSet(max, nanos) ) {
+            max = this.maxNanos.get();
+        }
+    }
+
+    /**
+     * Observes the time since the given {@link System#nanoTime()}
+     */
+    public void observeSince( long startNanos )
+    {
+        observeNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    public double getSumSeconds()
+    {
+        return this.sumNanos.get() / 1e9;
+    }
+
+    public double getMaxSeconds()
+    {
+        return this.maxNanos.get() / 1e9;
+    }
+
+    /**
+     * @return the number of observations in the given bucket, not cumulative
+     */
+    long getBucketCount( int bucket )
+    {
+        return this.counts.get(bucket);
+    }
+}
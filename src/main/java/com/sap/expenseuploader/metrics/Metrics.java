@@ -0,0 +1,252 @@
+package com.sap.expenseuploader.metrics;
+
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the metrics of an upload run, e.g. ERP and HTTP latencies, rows read and bytes sent.
+ * Metrics are identified by name and optional labels, e.g.
+ * {@code Metrics.histogram("http_request_seconds", "endpoint", "/rest/expense")}, and are created on first use.
+ * All methods are thread-safe.
+ * <p>
+ * At the end of a run the metrics can be written as JSON or in the Prometheus text format. During the run they
+ * can be watched via JMX.
+ */
+public final class Metrics
+{
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+    public static final String PREFIX = "expense_uploader_";
+    private static final String JMX_NAME = "com.sap.expenseuploader:type=Metrics";
+
+    // Name with labels -> metric
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * @param name
+     * @param labels pairs of label name and value
+     */
+    public static Counter counter( String name, String... labels )
+    {
+        String key = key(name, labels);
+        Counter counter = counters.get(key);
+        if( counter == null ) {
+            counters.putIfAbsent(key, new Counter());
+            counter = counters.get(key);
+        }
+        return counter;
+    }
+
+    /**
+     * @param name
+     * @param labels pairs of label name and value
+     */
+    public static Histogram histogram( String name, String... labels )
+    {
+        String key = key(name, labels);
+        Histogram histogram = histograms.get(key);
+        if( histogram == null ) {
+            histograms.putIfAbsent(key, new Histogram());
+            histogram = histograms.get(key);
+        }
+        return histogram;
+    }
+
+    /**
+     * Removes all metrics
+     */
+    public static void clear()
+    {
+        counters.clear();
+        histograms.clear();
+    }
+
+    private static String key( String name, String... labels )
+    {
+        if( labels.length == 0 ) {
+            return PREFIX + name;
+        }
+        StringBuilder key = new StringBuilder(PREFIX).append(name).append('{');
+        for( int i = 0; i + 1 < labels.length; i += 2 ) {
+            if( i > 0 ) {
+                key.append(',');
+            }
+            key.append(labels[i]).append("=\"").append(labels[i + 1].replace("\"", "\\\"")).append('"');
+        }
+        return key.append('}').toString();
+    }
+
+    /**
+     * Adds a label to a key, e.g. the bucket bound of a histogram
+     */
+    private static String withLabel( String key, String suffix, String label )
+    {
+        int brace = key.indexOf('{');
+        if( brace < 0 ) {
+            return key + suffix + (label == null ? "" : "{" + label + "}");
+        }
+        String name = key.substring(0, brace);
+        String labels = key.substring(brace + 1, key.length() - 1);
+        return name + suffix + "{" + labels + (label == null ? "" : "," + label) + "}";
+    }
+
+    /**
+     * @return the name of the metric without its labels
+     */
+    private static String getName( String key )
+    {
+        int brace = key.indexOf('{');
+        return brace < 0 ? key : key.substring(0, brace);
+    }
+
+    private static String format( double value )
+    {
+        if( value == Math.rint(value) && !Double.isInfinite(value) ) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * @return the counters, and count, sum and maximum of the histograms, sorted by name
+     */
+    public static Map<String, Double> getValues()
+    {
+        Map<String, Double> values = new TreeMap<>();
+        for( Map.Entry<String, Counter> entry : counters.entrySet() ) {
+            values.put(entry.getKey(), (double) entry.getValue().get());
+        }
+        for( Map.Entry<String, Histogram> entry : histograms.entrySet() ) {
+            values.put(withLabel(entry.getKey(), "_count", null), (double) entry.getValue().getCount());
+            values.put(withLabel(entry.getKey(), "_sum", null), entry.getValue().getSumSeconds());
+            values.put(withLabel(entry.getKey(), "_max", null), entry.getValue().getMaxSeconds());
+        }
+        return values;
+    }
+
+    public static String toPrometheusText()
+    {
+        StringBuilder text = new StringBuilder();
+        String lastName = null;
+        for( Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet() ) {
+            // The keys of one metric are sorted next to each other, the type is written once before them
+            String name = getName(entry.getKey());
+            if( !name.equals(lastName) ) {
+                text.append("# TYPE ").append(name).append(" counter\n");
+                lastName = name;
+            }
+            text.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for( Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet() ) {
+            String name = getName(entry.getKey());
+            if( !name.equals(lastName) ) {
+                text.append("# TYPE ").append(name).append(" histogram\n");
+                lastName = name;
+            }
+            Histogram histogram = entry.getValue();
+            long cumulative = 0;
+            for( int i = 0; i <= Histogram.BUCKETS.length; i++ ) {
+                cumulative += histogram.getBucketCount(i);
+                String bound = i < Histogram.BUCKETS.length ? format(Histogram.BUCKETS[i]) : "+Inf";
+                text.append(withLabel(entry.getKey(), "_bucket", "le=\"" + bound + "\""))
+                    .append(' ')
+                    .append(cumulative)
+                    .append('\n');
+            }
+            text.append(withLabel(entry.getKey(), "_sum", null))
+                .append(' ')
+                .append(format(histogram.getSumSeconds()))
+                .append('\n');
+            text.append(withLabel(entry.getKey(), "_count", null))
+                .append(' ')
+                .append(histogram.getCount())
+                .append('\n');
+        }
+        return text.toString();
+    }
+
+    public static String toJson()
+    {
+        Map<String, Object> json = new LinkedHashMap<>();
+        Map<String, Long> counterValues = new TreeMap<>();
+        for( Map.Entry<String, Counter> entry : counters.entrySet() ) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("counters", counterValues);
+        Map<String, Map<String, Object>> histogramValues = new TreeMap<>();
+        for( Map.Entry<String, Histogram> entry : histograms.entrySet() ) {
+            Histogram histogram = entry.getValue();
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", histogram.getCount());
+            values.put("sumSeconds", histogram.getSumSeconds());
+            values.put("maxSeconds", histogram.getMaxSeconds());
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for( int i = 0; i <= Histogram.BUCKETS.length; i++ ) {
+                buckets.put(i < Histogram.BUCKETS.length ? format(Histogram.BUCKETS[i]) : "+Inf",
+                    histogram.getBucketCount(i));
+            }
+            values.put("buckets", buckets);
+            histogramValues.put(entry.getKey(), values);
+        }
+        json.put("histograms", histogramValues);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+    }
+
+    /**
+     * Writes the metrics as JSON if the file name ends with .json, otherwise in the Prometheus text format.
+     * Doesn't log, so that it can be called from a shutdown hook.
+     */
+    public static void writeTo( File file )
+        throws IOException
+    {
+        String content = file.getName().toLowerCase(Locale.ROOT).endsWith(".json") ? toJson() : toPrometheusText();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Makes the metrics visible via JMX while the uploader runs
+     */
+    public static void registerMBean()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMXBean()
+            {
+                @Override
+                public Map<String, Double> getValues()
+                {
+                    return Metrics.getValues();
+                }
+
+                @Override
+                public String getPrometheusText()
+                {
+                    return Metrics.toPrometheusText();
+                }
+            }, new ObjectName(JMX_NAME));
+            logger.info("Metrics are available via JMX as " + JMX_NAME);
+        }
+        catch( JMException e ) {
+            logger.warn("Failed to register the metrics for JMX", e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.sap.expenseuploader.metrics;
+
+import java.util.Map;
+
+/**
+ * Shows the metrics of a running upload in JMX clients like JConsole
+ */
+public interface MetricsMXBean
+{
+    /**
+     * @return the counters, and count and sum of the histograms, by name and labels
+     */
+    Map<String, Double> getValues();
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    String getPrometheusText();
+}
@@ -1,36 +1,44 @@
 package com.sap.expenseuploader.model;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.annotations.JsonAdapter;
+import com.sap.expenseuploader.DateCodec;
 import com.sap.expenseuploader.Helper;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
+import java.math.BigDecimal;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+/**
+ * One line item. Millions of them can be in memory at once, so only primitives and shared strings are stored:
+ * the date as days since 1970-01-01, the amount as double, and all repeating values (type, cost center, account,
+ * internal order, currency) interned. The input fields are reconstructed on demand by {@link #get(int)}; the
+ * cost center and internal order are kept as in the input, only the date and the amount are formatted anew.
+ */
+@JsonAdapter( ExpenseTypeAdapter.class )
 public class Expense implements Comparable<Expense>
 {
-    private static transient final Logger logger = LogManager.getLogger(Expense.class);
-
-    private Date date;
-    private String type;
-    @SerializedName( "cost-center" )
-    private String costCenter;
-    private String account;
-    private String requester;
-    @SerializedName( "internal-order" )
-    private String internalOrder;
-    private String context;
-    private transient String requestID;
-    private Double amount;
-    private String currency;
-    @SerializedName( "document-id" )
-    private String documentNumber;
-
-    private transient List<String> fields; // Transient to skip serialisation
+    // Item Date, Cost Type, Cost Center, Account, Requester, Internal Order, Context, Request ID, Amount, Currency,
+    // Document Number
+    public static final int FIELD_COUNT = 11;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int epochDay;
+    private final String type;
+    private final String costCenter;
+    private final String inputCostCenter; // With leading zeros, as in the input
+    private final String account;
+    private final String requester;
+    private final String internalOrder;
+    private final String context;
+    private final String requestID;
+    private final double amount;
+    private final String currency;
+    private final String documentNumber;
+    private final int fieldCount;
 
     public Expense( String... fields )
     {
@@ -39,12 +47,8 @@ public class Expense implements Comparable<Expense>
 
     public Expense( List<String> fields )
     {
-        this.fields = fields;
-
         try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-            sdf.setLenient(false);
-            this.date = sdf.parse(fields.get(0));
+            this.epochDay = DateCodec.parse(fields.get(0));
         }
         catch( ParseException e ) {
 
@@ -59,42 +63,78 @@ public class Expense implements Comparable<Expense>
             }
 
         }
-        this.type = fields.get(1);
+        this.type = Helper.intern(fields.get(1));
         if( this.type == null || this.type.equals("") ) {
             throw new RuntimeException("Field 'Cost Type' is mandatory, please insert the type for all line items.");
         }
-        this.costCenter = Helper.stripLeadingZeros(fields.get(2));
-        this.account = fields.get(3);
+        this.inputCostCenter = Helper.intern(fields.get(2));
+        this.costCenter = Helper.intern(Helper.stripLeadingZeros(this.inputCostCenter));
+        this.account = Helper.intern(fields.get(3));
         this.requester = fields.get(4);
-        this.internalOrder = fields.get(5);
-        if (this.internalOrder != null && this.internalOrder.isEmpty()) {
-            this.internalOrder = null; // Change empty string to null
-        }
+        // An empty internal order is kept for get(int), but is null for getInternalOrder()
+        this.internalOrder = Helper.intern(fields.get(5));
         this.context = fields.get(6);
         this.requestID = fields.get(7);
         try {
             this.amount = Double.parseDouble(fields.get(8));
         }
-        catch( NumberFormatException e ) {
+        catch( NumberFormatException | NullPointerException e ) {
             throw new RuntimeException(
                 "Line item 'Amount' field is mandatory. Please enter the amounts for all expenses "
                     + "as numbers. E.g. 10.54");
         }
-        this.currency = fields.get(9);
+        this.currency = Helper.intern(fields.get(9));
         if( this.currency == null || this.currency.equals("") ) {
             throw new RuntimeException("Field 'Currency' is mandatory, please insert the currency for all line items.");
         }
         this.documentNumber = 10 < fields.size() ? fields.get(10) : null;
+        // Columns after the document number are not kept
+        this.fieldCount = Math.min(fields.size(), FIELD_COUNT);
     }
 
+    /**
+     * @return the number of input columns, without the ones after the document number
+     */
     public int size()
     {
-        return this.fields.size();
+        return this.fieldCount;
     }
 
+    /**
+     * Returns the field in the order of the input columns. The date is formatted as yyyy-MM-dd and the amount
+     * without exponent, e.g. 12.5 and 10000000 for the input 12.50 and 1.0E7.
+     */
     public String get( int i )
     {
-        return this.fields.get(i);
+        if( i >= this.fieldCount ) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + this.fieldCount);
+        }
+        switch( i ) {
+        case 0:
+            return formatDate();
+        case 1:
+            return this.type;
+        case 2:
+            return this.inputCostCenter;
+        case 3:
+            return this.account;
+        case 4:
+            return this.requester;
+        case 5:
+            return this.internalOrder;
+        case 6:
+            return this.context;
+        case 7:
+            return this.requestID;
+        case 8:
+            return BigDecimal.valueOf(this.amount).toPlainString();
+        case 9:
+            return this.currency;
+        case 10:
+            return this.documentNumber;
+        default:
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + this.fieldCount);
+        }
     }
 
     public String getType()
@@ -102,12 +142,31 @@ public class Expense implements Comparable<Expense>
         return type;
     }
 
+    /**
+     * @return the date at midnight in the default time zone
+     */
     public Date getDate()
     {
-        return date;
+        return DateCodec.toDate(this.epochDay);
     }
 
-    public Double getAmount()
+    /**
+     * @return the date as days since 1970-01-01
+     */
+    public int getEpochDay()
+    {
+        return epochDay;
+    }
+
+    /**
+     * @return the date as yyyy-MM-dd
+     */
+    public String formatDate()
+    {
+        return DateCodec.format(this.epochDay);
+    }
+
+    public double getAmount()
     {
         return amount;
     }
@@ -132,9 +191,12 @@ public class Expense implements Comparable<Expense>
         return currency;
     }
 
+    /**
+     * @return the internal order, or null if it is empty
+     */
     public String getInternalOrder()
     {
-        return internalOrder;
+        return internalOrder == null || internalOrder.isEmpty() ? null : internalOrder;
     }
 
     public String getRequester()
@@ -162,6 +224,41 @@ public class Expense implements Comparable<Expense>
         return false;
     }
 
+    /**
+     * Returns a 64 bit FNV-1a hash over all fields of the expense which are uploaded. Changing any of them
+     * changes the fingerprint, so it can be used to recognize duplicates and expenses which have been uploaded before.
+     */
+    public long getFingerprint()
+    {
+        long hash = FNV_OFFSET_BASIS;
+        hash = fingerprint(hash, String.valueOf(this.epochDay));
+        hash = fingerprint(hash, this.type);
+        hash = fingerprint(hash, this.costCenter);
+        hash = fingerprint(hash, this.account);
+        hash = fingerprint(hash, this.requester);
+        hash = fingerprint(hash, getInternalOrder());
+        hash = fingerprint(hash, this.context);
+        hash = fingerprint(hash, String.valueOf(this.amount));
+        hash = fingerprint(hash, this.currency);
+        hash = fingerprint(hash, this.documentNumber);
+        return hash;
+    }
+
+    private static long fingerprint( long hash, String value )
+    {
+        if( value == null ) {
+            // Different from the empty string
+            return (hash ^ 0xFF) * FNV_PRIME;
+        }
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // Separator, so that "ab" + "c" differs from "a" + "bc"
+        return (hash ^ 0xFE) * FNV_PRIME;
+    }
+
     private int nullSafeCompare( Comparable o1, Object o2 )
     {
         if( o1 == null && o2 == null ) {
@@ -181,7 +278,7 @@ public class Expense implements Comparable<Expense>
     public int compareTo( Expense other )
     {
         int result;
-        result = nullSafeCompare(this.date, other.getDate());
+        result = Integer.compare(this.epochDay, other.getEpochDay());
         if( result != 0 ) {
             return result;
         }
@@ -189,7 +286,7 @@ public class Expense implements Comparable<Expense>
         if( result != 0 ) {
             return result;
         }
-        result = nullSafeCompare(this.amount, other.getAmount());
+        result = Double.compare(this.amount, other.getAmount());
         if( result != 0 ) {
             return result;
         }
@@ -209,9 +306,30 @@ public class Expense implements Comparable<Expense>
         return this.compareTo((Expense) other) == 0;
     }
 
+    /**
+     * Consistent with {@link #equals(Object)}, which compares date, type, amount and currency (ignoring case)
+     */
+    @Override
+    public int hashCode()
+    {
+        long amountBits = Double.doubleToLongBits(this.amount);
+        int result = this.epochDay;
+        result = 31 * result + (this.type == null ? 0 : this.type.toLowerCase().hashCode());
+        result = 31 * result + (int) (amountBits ^ (amountBits >>> 32));
+        result = 31 * result + (this.currency == null ? 0 : this.currency.toLowerCase().hashCode());
+        return result;
+    }
+
     @Override
     public String toString()
     {
-        return this.fields.toString();
+        StringBuilder result = new StringBuilder("[");
+        for( int i = 0; i < this.fieldCount; i++ ) {
+            if( i > 0 ) {
+                result.append(", ");
+            }
+            result.append(get(i));
+        }
+        return result.append(']').toString();
     }
 }
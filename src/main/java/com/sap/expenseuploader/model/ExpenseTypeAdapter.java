@@ -0,0 +1,107 @@
+package com.sap.expenseuploader.model;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes expenses in the JSON format of the HCP expense API directly from their compact fields,
+ * without reflection and without creating Date objects. Fields without value are left out.
+ * <p>
+ * Example: {"date":"2015-04-29","type":"ACTUAL","cost-center":"1104340","account":"400000",
+ * "context":"Travel","amount":10.54,"currency":"EUR","document-id":"4711"}
+ */
+public class ExpenseTypeAdapter extends TypeAdapter<Expense>
+{
+    @Override
+    public void write( JsonWriter out, Expense expense )
+        throws IOException
+    {
+        if( expense == null ) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("date").value(expense.formatDate());
+        writeOptional(out, "type", expense.getType());
+        writeOptional(out, "cost-center", expense.getCostCenter());
+        writeOptional(out, "account", expense.getAccount());
+        writeOptional(out, "requester", expense.getRequester());
+        writeOptional(out, "internal-order", expense.getInternalOrder());
+        writeOptional(out, "context", expense.getContext());
+        out.name("amount").value(expense.getAmount());
+        writeOptional(out, "currency", expense.getCurrency());
+        writeOptional(out, "document-id", expense.getDocumentNumber());
+        out.endObject();
+    }
+
+    private static void writeOptional( JsonWriter out, String name, String value )
+        throws IOException
+    {
+        if( value != null ) {
+            out.name(name).value(value);
+        }
+    }
+
+    /**
+     * Reads an expense as written by {@link #write(JsonWriter, Expense)}, e.g. from a stored request
+     */
+    @Override
+    public Expense read( JsonReader in )
+        throws IOException
+    {
+        if( in.peek() == JsonToken.NULL ) {
+            in.nextNull();
+            return null;
+        }
+        String[] fields = new String[Expense.FIELD_COUNT];
+        in.beginObject();
+        while( in.hasNext() ) {
+            String name = in.nextName();
+            if( in.peek() == JsonToken.NULL ) {
+                in.nextNull();
+                continue;
+            }
+            switch( name ) {
+            case "date":
+                fields[0] = in.nextString();
+                break;
+            case "type":
+                fields[1] = in.nextString();
+                break;
+            case "cost-center":
+                fields[2] = in.nextString();
+                break;
+            case "account":
+                fields[3] = in.nextString();
+                break;
+            case "requester":
+                fields[4] = in.nextString();
+                break;
+            case "internal-order":
+                fields[5] = in.nextString();
+                break;
+            case "context":
+                fields[6] = in.nextString();
+                break;
+            case "amount":
+                fields[8] = in.nextString();
+                break;
+            case "currency":
+                fields[9] = in.nextString();
+                break;
+            case "document-id":
+                fields[10] = in.nextString();
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Expense(Arrays.asList(fields));
+    }
+}
@@ -0,0 +1,44 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.expenses.output.AdaptiveBatchSizer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatchSizerTest
+{
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1100, Integer.MAX_VALUE);
+        assertEquals(1100, sizer.getBatchSize());
+
+        sizer.onResponse(503, 1000);
+        assertEquals(550, sizer.getBatchSize());
+        sizer.onResponse(200, AdaptiveBatchSizer.TARGET_LATENCY_MILLIS + 1);
+        assertEquals(412, sizer.getBatchSize());
+        sizer.onResponse(200, 1000);
+        assertEquals(512, sizer.getBatchSize());
+
+        // Never below the minimum or above the maximum
+        for( int i = 0; i < 10; i++ ) {
+            sizer.onResponse(413, 1000);
+        }
+        assertEquals(100, sizer.getBatchSize());
+        for( int i = 0; i < 20; i++ ) {
+            sizer.onResponse(200, 1000);
+        }
+        assertEquals(1100, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testByteBudget()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1000, 100000);
+        // 500 bytes per expense, so 90% of the budget fits 180 expenses
+        sizer.onSerialized(100, 50000);
+        assertEquals(180, sizer.getBatchSize());
+        sizer.onSerialized(100, 10000000);
+        assertEquals(10, sizer.getBatchSize());
+    }
+}
@@ -0,0 +1,62 @@
+package com.sap.expenseuploader;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DateCodecTest
+{
+    @Test
+    public void testSameAsSimpleDateFormat()
+        throws Exception
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dateFormat.setLenient(false);
+        String[] dates = { "2015-04-29", "2015-4-9", "2016-02-29", "2000-02-29", "2015-04-29 12:00", "0001-01-01" };
+        for( String date : dates ) {
+            int epochDay = DateCodec.parse(date);
+            assertEquals(date, dateFormat.parse(date), DateCodec.toDate(epochDay));
+            // Cached values must be the same
+            assertEquals(epochDay, DateCodec.parse(date));
+        }
+        assertEquals("2015-04-09", DateCodec.format(DateCodec.parse("2015-4-9")));
+        assertEquals(0, DateCodec.parse("1970-01-01"));
+    }
+
+    @Test
+    public void testInvalidDates()
+    {
+        String[] dates = { null, "", "2015", "2015-13-01", "2015-02-29", "1900-02-29", "2015-04-31", "2015/04/29",
+            "20150429", "-2015-04-29" };
+        for( String date : dates ) {
+            try {
+                DateCodec.parse(date);
+                fail("Expected invalid date " + date);
+            }
+            catch( ParseException e ) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testErpDates()
+        throws Exception
+    {
+        assertEquals(DateCodec.parse("2015-04-29"), DateCodec.parseErpDate("20150429"));
+        assertEquals(DateCodec.parse("2015-04-29"), DateCodec.parseErpDate("2015-04-29"));
+        assertEquals("20150429", DateCodec.formatErpDate(DateCodec.parse("2015-04-29")));
+    }
+
+    @Test
+    public void testToday()
+    {
+        Calendar cal = Calendar.getInstance();
+        assertEquals(new SimpleDateFormat("yyyy-MM-dd").format(cal.getTime()), DateCodec.format(DateCodec.today()));
+    }
+}
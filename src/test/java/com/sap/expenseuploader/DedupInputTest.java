@@ -0,0 +1,63 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.expenses.DedupInput;
+import com.sap.expenseuploader.expenses.ExpenseSink;
+import com.sap.expenseuploader.expenses.input.ExpenseInput;
+import com.sap.expenseuploader.model.Expense;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DedupInputTest
+{
+    private static Expense expense( String context, String requestID )
+    {
+        return new Expense("2016-01-01", "ACTUAL", "1104340", "400000", "", "", context, requestID, "1.0", "EUR",
+            "4711");
+    }
+
+    @Test
+    public void testDuplicatesAreSkipped()
+        throws Exception
+    {
+        final List<Expense> input = Arrays.asList(expense("A", ""),
+            expense("B", ""),
+            expense("A", ""),
+            // The request ID isn't uploaded, so this is a duplicate as well
+            expense("A", "other"));
+        DedupInput dedupInput = new DedupInput(new ExpenseInput()
+        {
+            @Override
+            public List<Expense> getExpenses()
+            {
+                return input;
+            }
+
+            @Override
+            public void readExpenses( ExpenseSink sink )
+            {
+                for( Expense expense : input ) {
+                    sink.put(expense);
+                }
+            }
+        });
+
+        List<Expense> expenses = dedupInput.getExpenses();
+        assertEquals(2, expenses.size());
+        assertEquals("A", expenses.get(0).getContext());
+        assertEquals("B", expenses.get(1).getContext());
+        assertEquals(2, dedupInput.getDuplicates());
+    }
+
+    @Test
+    public void testHashCodeIsConsistentWithEquals()
+    {
+        Expense first = new Expense("2016-01-01", "ACTUAL", "1", "", "", "", "A", "", "1.0", "EUR");
+        Expense second = new Expense("2016-01-01", "actual", "2", "", "", "", "B", "", "1.0", "eur");
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+}
@@ -0,0 +1,62 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.expenses.DeltaStore;
+import com.sap.expenseuploader.model.Expense;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeltaStoreTest
+{
+    private static Expense expense( String date, String costCenter, String amount )
+    {
+        return new Expense(date, "ACTUAL", costCenter, "400000", "", "", "Item", "", amount, "EUR", "4711");
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        assertEquals(expense("2016-01-01", "1104340", "1.0").getFingerprint(),
+            expense("2016-01-01", "001104340", "1.0").getFingerprint());
+        assertNotEquals(expense("2016-01-01", "1104340", "1.0").getFingerprint(),
+            expense("2016-01-01", "1104340", "2.0").getFingerprint());
+        assertNotEquals(expense("2016-01-01", "1104340", "1.0").getFingerprint(),
+            expense("2016-01-02", "1104340", "1.0").getFingerprint());
+    }
+
+    @Test
+    public void testRecordSaveAndLoad()
+        throws Exception
+    {
+        File file = File.createTempFile("delta", ".bin");
+        file.delete();
+        try {
+            DeltaStore store = DeltaStore.load(file, "0001");
+            assertNull(store.getDeltaFromTime(Arrays.asList("1104340"), 7));
+
+            store.record("alice", Arrays.asList(expense("2016-01-10", "1104340", "1.0"),
+                expense("2016-02-10", "1104340", "1.0"),
+                expense("2016-01-20", "1104341", "1.0")));
+            store.save();
+
+            DeltaStore loaded = DeltaStore.load(file, "0001");
+            assertTrue(loaded.contains("alice", expense("2016-01-10", "1104340", "1.0")));
+            assertFalse(loaded.contains("alice", expense("2016-01-10", "1104340", "3.0")));
+            // Another user of the same cost center has not got the expense yet
+            assertFalse(loaded.contains("bob", expense("2016-01-10", "1104340", "1.0")));
+            assertEquals("20160203", loaded.getDeltaFromTime(Arrays.asList("1104340"), 7));
+            // The oldest high-water mark of all cost centers counts
+            assertEquals("20160113", loaded.getDeltaFromTime(Arrays.asList("001104340", "1104341"), 7));
+            // Unknown cost centers have to be read completely
+            assertNull(loaded.getDeltaFromTime(Arrays.asList("1104340", "1104342"), 7));
+            // High-water marks are per controlling area
+            assertNull(DeltaStore.load(file, "0002").getDeltaFromTime(Arrays.asList("1104340"), 7));
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.config.ErpExpenseInputConfig;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ErpCostCenterCacheTest
+{
+    @Test
+    public void testFreshCacheIsUsedWithoutErp()
+        throws Exception
+    {
+        File directory = Files.createTempDirectory("costcenters").toFile();
+        File file = new File(directory, "costcenters-system-0001.txt");
+        Files.write(file.toPath(), Arrays.asList("1000", "2000"), StandardCharsets.UTF_8);
+
+        ErpExpenseInputConfig config = new ErpExpenseInputConfig("system", "0001", "20170101", null, null);
+        Set<String> costCenters = new ErpCostCenterCache(directory, 60).getCostCenters(config);
+        assertEquals(new HashSet<>(Arrays.asList("1000", "2000")), costCenters);
+
+        file.delete();
+        directory.delete();
+    }
+}
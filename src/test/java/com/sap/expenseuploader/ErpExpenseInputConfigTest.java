@@ -0,0 +1,39 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.config.ErpExpenseInputConfig;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ErpExpenseInputConfigTest {
+
+    @Test
+    public void testPostingDateWindows() throws Exception
+    {
+        ErpExpenseInputConfig config = new ErpExpenseInputConfig("system", "0001", "20150301", "2015-03-31", null);
+        assertEquals(1, config.getPostingDateWindows().size());
+
+        config.setSliceDays(10);
+        List<String[]> windows = config.getPostingDateWindows();
+        assertEquals(4, windows.size());
+        assertArrayEquals(new String[] { "20150301", "20150310" }, windows.get(0));
+        assertArrayEquals(new String[] { "20150311", "20150320" }, windows.get(1));
+        assertArrayEquals(new String[] { "20150321", "20150330" }, windows.get(2));
+        assertArrayEquals(new String[] { "20150331", "20150331" }, windows.get(3));
+    }
+
+    @Test
+    public void testCostCenterGroups() throws Exception
+    {
+        ErpExpenseInputConfig config = new ErpExpenseInputConfig("system", "0001", "20150301", null, null);
+        List<String> costCenters = Arrays.asList("1", "2", "3", "4", "5");
+        assertEquals(1, config.getCostCenterGroups(costCenters).size());
+
+        config.setSliceCostCenters(2);
+        assertEquals("[[1, 2], [3, 4], [5]]", config.getCostCenterGroups(costCenters).toString());
+    }
+}
@@ -59,6 +59,8 @@ public class ExcelBudgetConfigTest {
         assertEquals(1, config.getTagBudgetsOfUser("S12345670").size());
         assertEquals(3, config.getTagBudgetsOfUser("S12345670").get("Products").size());
         assertEquals(1, config.getTagBudgetsOfUser("S12345670").get("Products").get("Product A").size());
+        assertTrue(config.getAllTags().get("Products").contains("Product A"));
+        assertEquals(3, config.getAllTags().get("Products").size());
     }
 
     @Test
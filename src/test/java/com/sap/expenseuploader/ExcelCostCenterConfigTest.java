@@ -35,4 +35,18 @@ public class ExcelCostCenterConfigTest {
         assertEquals(1, config.getUsers("1104341").size());
         assertEquals(1, config.getUsers("1104342").size());
     }
+
+    @Test
+    public void testNormalizedCostCenterUsers() throws IOException, InvalidFormatException
+    {
+        CostCenterConfig config = new ExcelCostCenterConfig("src/test/resources/config/working.xlsx");
+
+        assertEquals(3, config.getNormalizedCostCenterUsers().size());
+        assertEquals("[S12345670]", config.getNormalizedCostCenterUsers().get("1104341").toString());
+        assertTrue(config.getNormalizedCostCenterUsers().get("1104340").contains("S12345678"));
+        assertTrue(config.getNormalizedCostCenterUsers().get("1104340").contains("S12345679"));
+        assertEquals(2, config.getNormalizedCostCenterUsers().get("1104340").size());
+        assertEquals("1104340", CostCenterConfig.normalizeCostCenter("0001104340"));
+        assertEquals("marketing", CostCenterConfig.normalizeCostCenter("MARKETING"));
+    }
 }
@@ -0,0 +1,97 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.expenses.ExpensePipeline;
+import com.sap.expenseuploader.expenses.ExpenseSink;
+import com.sap.expenseuploader.expenses.input.ExpenseInput;
+import com.sap.expenseuploader.expenses.output.ExpenseOutput;
+import com.sap.expenseuploader.model.Expense;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ExpensePipelineTest
+{
+    private static final int EXPENSES = 1000;
+
+    private static class GeneratedInput implements ExpenseInput
+    {
+        @Override
+        public List<Expense> getExpenses()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void readExpenses( ExpenseSink sink )
+        {
+            for( int i = 0; i < EXPENSES; i++ ) {
+                sink.put(new Expense("2016-01-01", "ACTUAL", "1104340", "400000", "", "", "Item " + i, "", "1.0", "EUR",
+                    String.valueOf(i)));
+            }
+        }
+    }
+
+    private static class CollectingOutput implements ExpenseOutput
+    {
+        private final List<Expense> expenses = new ArrayList<>();
+
+        @Override
+        public void putExpenses( List<Expense> expenses )
+        {
+            putExpenses(expenses.iterator());
+        }
+
+        @Override
+        public void putExpenses( Iterator<Expense> expenses )
+        {
+            while( expenses.hasNext() ) {
+                this.expenses.add(expenses.next());
+            }
+        }
+    }
+
+    private static class FailingOutput extends CollectingOutput
+    {
+        @Override
+        public void putExpenses( Iterator<Expense> expenses )
+        {
+            expenses.next();
+            throw new IllegalStateException("Output failed");
+        }
+    }
+
+    @Test
+    public void testAllOutputsGetAllExpenses()
+        throws Exception
+    {
+        CollectingOutput first = new CollectingOutput();
+        CollectingOutput second = new CollectingOutput();
+        long count = new ExpensePipeline(new GeneratedInput(), Arrays.<ExpenseOutput>asList(first, second), 10).run();
+
+        assertEquals(EXPENSES, count);
+        assertEquals(EXPENSES, first.expenses.size());
+        assertEquals(first.expenses, second.expenses);
+        assertEquals("Item 999", first.expenses.get(EXPENSES - 1).getContext());
+    }
+
+    @Test(timeout = 10000)
+    public void testFailingOutputDoesNotBlockInput()
+        throws Exception
+    {
+        CollectingOutput collecting = new CollectingOutput();
+        try {
+            new ExpensePipeline(new GeneratedInput(), Arrays.<ExpenseOutput>asList(new FailingOutput(), collecting), 10).run();
+            fail("The failure of the output should be rethrown");
+        }
+        catch( IllegalStateException e ) {
+            assertEquals("Output failed", e.getMessage());
+        }
+        assertEquals(EXPENSES, collecting.expenses.size());
+    }
+}
@@ -0,0 +1,98 @@
+package com.sap.expenseuploader;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sap.expenseuploader.model.Expense;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ExpenseTest
+{
+    @Test
+    public void testDates()
+        throws Exception
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(1899, Calendar.DECEMBER, 25);
+        // Every day over some centuries, including leap years like 1900, 2000 and 2100
+        for( int i = 0; i < 80000; i++ ) {
+            String date = dateFormat.format(cal.getTime());
+            Expense expense = new Expense(date, "ACTUAL", "1", "", "", "", "", "", "1", "EUR");
+            assertEquals(date, expense.formatDate());
+            assertEquals(cal.getTime(), expense.getDate());
+            cal.add(Calendar.DATE, 1);
+        }
+        assertEquals(0, new Expense("1970-01-01", "ACTUAL", "1", "", "", "", "", "", "1", "EUR").getEpochDay());
+    }
+
+    @Test
+    public void testFields()
+    {
+        Expense expense =
+            new Expense("2015-04-29", "ACTUAL", "001104340", "400000", "", "", "Travel", "17", "10000000", "EUR");
+        assertEquals(10, expense.size());
+        assertEquals("001104340", expense.get(2));
+        assertEquals("1104340", expense.getCostCenter());
+        assertEquals("", expense.get(5));
+        assertNull(expense.getInternalOrder());
+        assertEquals("10000000", expense.get(8));
+    }
+
+    @Test
+    public void testInputColumns()
+    {
+        // Like from ExcelInput: the cost center with leading zeros, no internal order and a formatted amount
+        Expense expense = new Expense(Arrays.asList("2015-04-29",
+            "ACTUAL",
+            "0000001000",
+            "400000",
+            "S1",
+            null,
+            "Travel",
+            "17",
+            "12.50",
+            "EUR",
+            "4711"));
+        assertEquals(Expense.FIELD_COUNT, expense.size());
+        assertEquals("0000001000", expense.get(2));
+        assertNull(expense.get(5));
+        assertEquals("12.5", expense.get(8));
+        assertEquals("[2015-04-29, ACTUAL, 0000001000, 400000, S1, null, Travel, 17, 12.5, EUR, 4711]",
+            expense.toString());
+
+        Expense withoutDocumentNumber =
+            new Expense("2015-04-29", "PLAN", "1000", "400000", "", "", "", "", "1", "EUR");
+        assertEquals("[2015-04-29, PLAN, 1000, 400000, , , , , 1.0, EUR]", withoutDocumentNumber.toString());
+        try {
+            withoutDocumentNumber.get(10);
+            fail();
+        }
+        catch( IndexOutOfBoundsException e ) {
+            // Expected, the input had no document number column
+        }
+    }
+
+    @Test
+    public void testJson()
+    {
+        Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd").create();
+        Expense expense =
+            new Expense("2015-04-29", "ACTUAL", "1104340", "400000", "S1", "", "Travel", "17", "10.54", "EUR", "4711");
+        String json = gson.toJson(expense);
+        assertEquals("{\"date\":\"2015-04-29\",\"type\":\"ACTUAL\",\"cost-center\":\"1104340\",\"account\":\"400000\","
+            + "\"requester\":\"S1\",\"context\":\"Travel\",\"amount\":10.54,\"currency\":\"EUR\",\"document-id\":\"4711\"}",
+            json);
+
+        Expense read = gson.fromJson(json, Expense.class);
+        assertEquals(expense.getFingerprint(), read.getFingerprint());
+    }
+}
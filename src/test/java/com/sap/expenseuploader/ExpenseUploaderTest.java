@@ -51,6 +51,18 @@ public class ExpenseUploaderTest
         }
     }
 
+    @Test
+    public void testXlsAndXlsxInputMatch()
+        throws Exception
+    {
+        List<Expense> xlsxExpenses = new ExcelInput("src/test/resources/Input_Excel.xlsx").getExpenses();
+        List<Expense> xlsExpenses = new ExcelInput("src/test/resources/Input_Excel.xls").getExpenses();
+        assertEquals(xlsExpenses.size(), xlsxExpenses.size());
+        for( int i = 0; i < xlsExpenses.size(); i++ ) {
+            assertEquals(xlsExpenses.get(i).toString(), xlsxExpenses.get(i).toString());
+        }
+    }
+
     @Test
     public void testExcelOutput()
         throws ParseException
@@ -0,0 +1,30 @@
+package com.sap.expenseuploader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HelperTest {
+
+    @Test
+    public void testStripLeadingZeros()
+    {
+        String[] values = { "", "0", "00", "000", "1", "01", "0001104340", "1104340", "100", "0a", "00a0", "a00" };
+        for( String value : values ) {
+            // Must behave exactly like the former regex implementation
+            assertEquals(value, value.replaceFirst("^0+(?!$)", ""), Helper.stripLeadingZeros(value));
+        }
+        String noLeadingZeros = "1104340";
+        assertSame(noLeadingZeros, Helper.stripLeadingZeros(noLeadingZeros));
+    }
+
+    @Test
+    public void testIntern()
+    {
+        String first = new String("1104340");
+        String second = new String("1104340");
+        assertSame(Helper.intern(first), Helper.intern(second));
+        assertEquals(null, Helper.intern(null));
+    }
+}
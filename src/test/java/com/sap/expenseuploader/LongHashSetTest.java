@@ -0,0 +1,55 @@
+package com.sap.expenseuploader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongHashSetTest
+{
+    @Test
+    public void testBehavesLikeHashSet()
+    {
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for( int i = 0; i < 10000; i++ ) {
+            // Small range, so that there are duplicates
+            long value = random.nextInt(5000) - 2500;
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        for( long value = -3000; value < 3000; value++ ) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        assertEquals(expected.size(), values.length);
+        for( long value : values ) {
+            assertTrue(expected.contains(value));
+        }
+    }
+
+    @Test
+    public void testZeroAndExtremes()
+    {
+        LongHashSet set = new LongHashSet(1);
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertEquals(3, set.size());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+    }
+}
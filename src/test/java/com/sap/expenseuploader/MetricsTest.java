@@ -0,0 +1,36 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.metrics.Metrics;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest
+{
+    @Test
+    public void testExport()
+    {
+        Metrics.clear();
+        Metrics.counter("http_sent_bytes_total", "endpoint", "/rest/expense").add(1000);
+        Metrics.counter("http_sent_bytes_total", "endpoint", "/rest/expense").add(500);
+        Metrics.histogram("http_request_seconds", "endpoint", "/rest/expense").observeNanos(20000000L);
+        Metrics.histogram("http_request_seconds", "endpoint", "/rest/expense").observeNanos(3000000000L);
+
+        String text = Metrics.toPrometheusText();
+        assertTrue(text, text.contains("expense_uploader_http_sent_bytes_total{endpoint=\"/rest/expense\"} 1500\n"));
+        assertTrue(text,
+            text.contains("expense_uploader_http_request_seconds_bucket{endpoint=\"/rest/expense\",le=\"0.025\"} 1\n"));
+        assertTrue(text,
+            text.contains("expense_uploader_http_request_seconds_bucket{endpoint=\"/rest/expense\",le=\"+Inf\"} 2\n"));
+        assertTrue(text, text.contains("expense_uploader_http_request_seconds_count{endpoint=\"/rest/expense\"} 2\n"));
+        assertTrue(text, text.contains("# TYPE expense_uploader_http_sent_bytes_total counter\n"));
+        assertTrue(text, text.contains("# TYPE expense_uploader_http_request_seconds histogram\n"));
+
+        assertEquals(3.02,
+            Metrics.getValues().get("expense_uploader_http_request_seconds_sum{endpoint=\"/rest/expense\"}"),
+            1e-9);
+        assertTrue(Metrics.toJson().contains("\"count\": 2"));
+        Metrics.clear();
+    }
+}
@@ -0,0 +1,83 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.hcp.CircuitBreaker;
+import com.sap.expenseuploader.hcp.RequestNotSentException;
+import com.sap.expenseuploader.hcp.RetryPolicy;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest
+{
+    @Test
+    public void testDelays()
+    {
+        RetryPolicy policy = new RetryPolicy(4, 1000, 10000);
+        for( int retry = 1; retry <= 6; retry++ ) {
+            long limit = Math.min(10000, 1000L << (retry - 1));
+            long delay = policy.getDelayMillis(retry, null);
+            assertTrue(delay >= limit / 2 && delay <= limit);
+        }
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable");
+        response.setHeader("Retry-After", "7");
+        assertEquals(7000, policy.getDelayMillis(1, response));
+        response.setHeader("Retry-After", "120");
+        assertEquals(10000, policy.getDelayMillis(1, response));
+        response.setHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT");
+        assertEquals(0, RetryPolicy.getRetryAfterMillis(response));
+        response.setHeader("Retry-After", "soon");
+        assertEquals(-1, RetryPolicy.getRetryAfterMillis(response));
+
+        assertTrue(RetryPolicy.isRetryableStatus(503));
+        assertFalse(RetryPolicy.isRetryableStatus(400));
+        assertFalse(RetryPolicy.isRetryableStatus(500));
+        // A POST may have been processed before a gateway error or a timeout
+        assertTrue(RetryPolicy.isRetryableStatus(503, false));
+        assertTrue(RetryPolicy.isRetryableStatus(429, false));
+        assertFalse(RetryPolicy.isRetryableStatus(502, false));
+        assertFalse(RetryPolicy.isRetryableStatus(504, false));
+        assertTrue(RetryPolicy.isRetryable(new ConnectException("refused"), false));
+        assertFalse(RetryPolicy.isRetryable(new SocketTimeoutException("read timed out"), false));
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException("read timed out"), true));
+        // A POST whose CSRF token couldn't be fetched was never sent
+        assertTrue(RetryPolicy.isRetryable(new RequestNotSentException("HCP is not available"), false));
+        assertTrue(RetryPolicy.isRetryable(
+            new RequestNotSentException("read timed out", new SocketTimeoutException("read timed out")),
+            false));
+    }
+
+    @Test(timeout = 5000)
+    public void testCircuitBreaker()
+        throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker(2, 200);
+        breaker.awaitPermission();
+        breaker.onFailure(0);
+        breaker.awaitPermission();
+        breaker.onFailure(0);
+        assertEquals(1, breaker.getOpenCount());
+
+        // Open: the next request has to wait for the pause
+        long start = System.currentTimeMillis();
+        breaker.awaitPermission();
+        assertTrue(System.currentTimeMillis() - start >= 150);
+
+        // The probe failed, so the breaker opens again
+        breaker.onFailure(0);
+        assertEquals(2, breaker.getOpenCount());
+        breaker.awaitPermission();
+        breaker.onSuccess();
+
+        // Closed again: no waiting
+        start = System.currentTimeMillis();
+        breaker.awaitPermission();
+        assertTrue(System.currentTimeMillis() - start < 150);
+    }
+}
@@ -0,0 +1,60 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.budgets.TagIdCache;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TagIdCacheTest
+{
+    @Test
+    public void testCaseInsensitiveLookup()
+    {
+        TagIdCache cache = new TagIdCache("test");
+        assertNull(cache.getTagGroupId("Products"));
+        assertNull(cache.getTagId("Products", "Product A"));
+
+        cache.putTagGroup("Products", 1);
+        cache.putTag("Products", "Product A", 2);
+        assertEquals(Long.valueOf(1), cache.getTagGroupId("PRODUCTS"));
+        assertEquals(Long.valueOf(2), cache.getTagId("products", "product a"));
+        assertNull(cache.getTagId("Products", "Product B"));
+        assertEquals(2, cache.size());
+
+        // Known tag groups keep their tags
+        cache.putTagGroup("products", 1);
+        assertEquals(Long.valueOf(2), cache.getTagId("Products", "Product A"));
+    }
+
+    @Test
+    public void testSaveAndLoad()
+        throws Exception
+    {
+        File file = File.createTempFile("tags", ".json");
+        try {
+            TagIdCache cache = new TagIdCache("url=http://example.com, user=S12345678");
+            cache.putTagGroup("Products", 1);
+            cache.putTag("Products", "Product A", 2);
+            cache.setValidated("\"etag\"");
+            cache.save(file);
+
+            TagIdCache loaded = TagIdCache.load(file);
+            assertEquals("url=http://example.com, user=S12345678", loaded.getOwner());
+            assertEquals("\"etag\"", loaded.getEtag());
+            assertTrue(loaded.getAge() < 60 * 1000);
+            assertEquals(Long.valueOf(2), loaded.getTagId("Products", "Product A"));
+
+            // Loaded caches stay writable
+            loaded.putTag("Products", "Product B", 3);
+            assertEquals(Long.valueOf(3), loaded.getTagId("products", "product b"));
+        }
+        finally {
+            file.delete();
+        }
+        assertNull(TagIdCache.load(file));
+    }
+}
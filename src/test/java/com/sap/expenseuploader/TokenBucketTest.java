@@ -0,0 +1,52 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.hcp.TokenBucket;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest
+{
+    @Test(timeout = 5000)
+    public void testRate()
+        throws Exception
+    {
+        TokenBucket bucket = new TokenBucket(20);
+        long start = System.currentTimeMillis();
+        // The first 20 are in the bucket, the next 10 take half a second
+        for( int i = 0; i < 30; i++ ) {
+            bucket.acquire(1);
+        }
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + " ms", duration >= 400 && duration < 2000);
+    }
+
+    @Test(timeout = 5000)
+    public void testSharedFile()
+        throws Exception
+    {
+        File file = File.createTempFile("ratelimit", ".lock");
+        try( FileChannel first = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel second = FileChannel.open(file.toPath(),
+                 StandardOpenOption.READ,
+                 StandardOpenOption.WRITE) ) {
+            TokenBucket a = new TokenBucket(20, first, 1);
+            TokenBucket b = new TokenBucket(20, second, 1);
+            long start = System.currentTimeMillis();
+            // Both buckets take from the same 20 tokens per second
+            for( int i = 0; i < 15; i++ ) {
+                a.acquire(1);
+                b.acquire(1);
+            }
+            long duration = System.currentTimeMillis() - start;
+            assertTrue("took " + duration + " ms", duration >= 400 && duration < 2000);
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
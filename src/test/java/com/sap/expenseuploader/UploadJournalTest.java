@@ -0,0 +1,147 @@
+package com.sap.expenseuploader;
+
+import com.sap.expenseuploader.expenses.output.UploadJournal;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UploadJournalTest
+{
+    @Test
+    public void testResumeUnacknowledgedBatches()
+        throws Exception
+    {
+        Path folder = Files.createTempDirectory("requests");
+        try {
+            // Small segments, so that the bodies are spread over several segments
+            try( UploadJournal journal = UploadJournal.open(folder, 16) ) {
+                journal.writeConfig(Arrays.asList("hcp", "cost centers", "erp"));
+                UploadJournal.Batch first = journal.commitBatch("alice", 1, bytes("{\"user\":\"alice\"}"));
+                UploadJournal.Batch second = journal.commitBatch("bob", 2, bytes("{\"user\":\"bob\"}"));
+                journal.commitBatch("carol", 3, bytes("{\"user\":\"carol\"}"));
+                journal.recordResponse(first, 200, bytes("{}"));
+                journal.recordResponse(second, 500, bytes("{\"error\":\"invalid account\"}"));
+            }
+
+            // Simulate a crash while a record was written
+            try( RandomAccessFile file = new RandomAccessFile(folder.resolve(UploadJournal.JOURNAL_FILE).toFile(),
+                "rw") ) {
+                file.seek(file.length());
+                file.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+            }
+
+            try( UploadJournal journal = UploadJournal.open(folder) ) {
+                assertEquals(Arrays.asList("hcp", "cost centers", "erp"), journal.getConfig());
+                List<UploadJournal.Batch> failed = journal.getUnacknowledgedBatches();
+                assertEquals(2, failed.size());
+                assertEquals("bob", failed.get(0).getUser());
+                assertEquals(500, failed.get(0).getStatusCode());
+                assertEquals("{\"error\":\"invalid account\"}",
+                    new String(journal.readResponse(failed.get(0)), StandardCharsets.UTF_8));
+                assertEquals("carol", failed.get(1).getUser());
+                assertEquals(0, failed.get(1).getStatusCode());
+                assertEquals("{\"user\":\"carol\"}", new String(journal.readPayload(failed.get(1)), StandardCharsets.UTF_8));
+
+                // New batches get new IDs and are appended after the dropped record
+                UploadJournal.Batch next = journal.commitBatch("dave", 1, bytes("{}"));
+                assertEquals(4, next.getId());
+                journal.recordResponse(failed.get(0), 200, null);
+            }
+
+            try( UploadJournal journal = UploadJournal.open(folder) ) {
+                assertEquals(4, journal.getBatchCount());
+                assertEquals(2, journal.getUnacknowledgedBatches().size());
+                assertEquals("{}", new String(journal.readPayload(journal.getBatches().get(3)), StandardCharsets.UTF_8));
+            }
+        }
+        finally {
+            for( File file : folder.toFile().listFiles() ) {
+                file.delete();
+            }
+            Files.delete(folder);
+        }
+    }
+
+    @Test
+    public void testLargeConfig()
+        throws Exception
+    {
+        Path folder = Files.createTempDirectory("requests");
+        try {
+            // Like the cost center config of a few hundred users
+            StringBuilder costCenters = new StringBuilder();
+            while( costCenters.length() < 100000 ) {
+                costCenters.append("user").append(costCenters.length()).append("=[0001104340, 0001104341], ");
+            }
+            List<String> config = Arrays.asList("hcp", costCenters.toString(), "erp");
+            try( UploadJournal journal = UploadJournal.open(folder) ) {
+                journal.writeConfig(config);
+                journal.commitBatch("alice", 1, bytes("{}"));
+            }
+            try( UploadJournal journal = UploadJournal.open(folder) ) {
+                assertEquals(config, journal.getConfig());
+                assertEquals("alice", journal.getBatches().get(0).getUser());
+            }
+        }
+        finally {
+            for( File file : folder.toFile().listFiles() ) {
+                file.delete();
+            }
+            Files.delete(folder);
+        }
+    }
+
+    @Test
+    public void testReadOnly()
+        throws Exception
+    {
+        Path folder = Files.createTempDirectory("requests");
+        try {
+            try( UploadJournal journal = UploadJournal.open(folder) ) {
+                journal.writeConfig(Arrays.asList("hcp"));
+                journal.commitBatch("alice", 1, bytes("{\"user\":\"alice\"}"));
+            }
+            // A record which is being written by a running upload
+            File journalFile = folder.resolve(UploadJournal.JOURNAL_FILE).toFile();
+            try( RandomAccessFile file = new RandomAccessFile(journalFile, "rw") ) {
+                file.seek(file.length());
+                file.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+            }
+            long length = journalFile.length();
+
+            try( UploadJournal journal = UploadJournal.openReadOnly(folder) ) {
+                assertEquals(1, journal.getBatchCount());
+                assertEquals("{\"user\":\"alice\"}",
+                    new String(journal.readPayload(journal.getBatches().get(0)), StandardCharsets.UTF_8));
+                try {
+                    journal.commitBatch("bob", 1, bytes("{}"));
+                    fail("A read-only journal must not be written");
+                }
+                catch( IOException e ) {
+                    // Expected
+                }
+            }
+            assertEquals(length, journalFile.length());
+        }
+        finally {
+            for( File file : folder.toFile().listFiles() ) {
+                file.delete();
+            }
+            Files.delete(folder);
+        }
+    }
+
+    private static byte[] bytes( String s )
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}